@@ -0,0 +1,92 @@
+package nl.tsmeele.irelocate.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.tsmeele.irelocate.DecisionEngine;
+import nl.tsmeele.irelocate.Replica;
+import nl.tsmeele.irelocate.Resource;
+
+/**
+ * Classification of a data object by its replicas, as done by the processing threads for every
+ * data object after the lookup and verification of a batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecisionBenchmark {
+	@Param({ "replicate", "trim", "move" })
+	public String mode;
+
+	@Param({ "2", "6" })
+	public int replicasPerObject;
+
+	// nearby resources make more data objects count as present at the destination
+	@Param({ "false", "true" })
+	public boolean nearby;
+
+	private static final int OBJECTS = 4096;
+	private DecisionEngine engine;
+	private List<List<Replica>> objects = new ArrayList<List<Replica>>(OBJECTS);
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		Topology topology = new Topology(5, 200, 4);
+		Resource destination = topology.roots.get(0);
+		// the leafs of two other trees are the source resources
+		List<String> sources = new ArrayList<String>();
+		for (Resource r : topology.resources.expandToLeafs(topology.roots.get(1))) {
+			sources.add(r.name);
+		}
+		for (Resource r : topology.resources.expandToLeafs(topology.roots.get(2))) {
+			sources.add(r.name);
+		}
+		// resources on about a quarter of the destination hosts are nearby
+		List<Resource> nearbyResources = null;
+		if (nearby) {
+			nearbyResources = new ArrayList<Resource>();
+			for (Resource r : topology.resources.otherStorageResourcesOnSameHosts(destination)) {
+				if (r.loc.hashCode() % 4 == 0) {
+					nearbyResources.add(r);
+				}
+			}
+		}
+		engine = new DecisionEngine(topology.resources, destination, sources, nearbyResources, mode.equals("trim"),
+				mode.equals("move"));
+		Random random = new Random(42);
+		for (int i = 0; i < OBJECTS; i++) {
+			objects.add(topology.replicas(random, 10000L + i, replicasPerObject, true));
+		}
+	}
+
+	@Benchmark
+	public DecisionEngine.Decision decide() {
+		next = (next + 1) & (OBJECTS - 1);
+		return engine.decide(objects.get(next));
+	}
+
+	@Benchmark
+	public int roleOf() {
+		next = (next + 1) & (OBJECTS - 1);
+		return engine.roleOf(objects.get(next).get(0).dataRescName);
+	}
+
+}
@@ -0,0 +1,70 @@
+package nl.tsmeele.irelocate.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.tsmeele.irelocate.LogFile;
+
+/**
+ * Throughput of the action log when many processing threads write to it at the same time.
+ * Run with e.g. "-t 1" and "-t 16" to see the effect of contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class LogFileBenchmark {
+	@Param({ "text", "tsv" })
+	public String format;
+
+	@Param({ "0", "100" })
+	public long syncMillis;
+
+	private File file;
+	private LogFile log;
+
+	@State(Scope.Thread)
+	public static class Counter {
+		long dataId = 0L;
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		file = File.createTempFile("irelocate-bench", ".log");
+		file.delete();
+		log = new LogFile(file.getPath(), format.equals("tsv"), syncMillis);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		// close waits for the remaining records, so that their cost counts in the iteration
+		log.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public void logDone(Counter counter) throws IOException {
+		long dataId = ++counter.dataId;
+		log.logDone(dataId, 1048576L, 2500000L, "/tempZone/home/rods/collection/object" + dataId);
+	}
+
+}
@@ -0,0 +1,79 @@
+package nl.tsmeele.irelocate.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.tsmeele.irelocate.Resource;
+
+/**
+ * Lookups in the resource hierarchy, on topologies of about 1.000 and 10.000 resources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourcesBenchmark {
+	// number of hosts per tree, each with LEAFS_PER_HOST leafs
+	@Param({ "40", "400" })
+	public int hostsPerTree;
+
+	static final int TREES = 5;
+	static final int LEAFS_PER_HOST = 4;
+	private static final int PICKS = 1024;
+	private Topology topology;
+	private Resource[] roots = new Resource[PICKS];
+	private Resource[] leafs = new Resource[PICKS];
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		topology = new Topology(TREES, hostsPerTree, LEAFS_PER_HOST);
+		Random random = new Random(42);
+		for (int i = 0; i < PICKS; i++) {
+			roots[i] = topology.roots.get(random.nextInt(topology.roots.size()));
+			leafs[i] = topology.leafs.get(random.nextInt(topology.leafs.size()));
+		}
+	}
+
+	private int pick() {
+		next = (next + 1) & (PICKS - 1);
+		return next;
+	}
+
+	@Benchmark
+	public boolean isInTree() {
+		int i = pick();
+		return topology.resources.isInTree(roots[i], leafs[i]);
+	}
+
+	@Benchmark
+	public List<Resource> expandToLeafs() {
+		return topology.resources.expandToLeafs(roots[pick()]);
+	}
+
+	@Benchmark
+	public List<Resource> otherStorageResourcesOnSameHosts() {
+		return topology.resources.otherStorageResourcesOnSameHosts(roots[pick()]);
+	}
+
+	@Benchmark
+	public Resource getByName() {
+		return topology.resources.get(leafs[pick()].name);
+	}
+
+}
@@ -0,0 +1,81 @@
+package nl.tsmeele.irelocate.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nl.tsmeele.irelocate.IrodsResources;
+import nl.tsmeele.irelocate.Replica;
+import nl.tsmeele.irelocate.Resource;
+
+/**
+ * Synthetic resource hierarchy of a data grid, built without an iRODS server.
+ * Each tree has a replication resource as root, with a passthru resource per host that holds
+ * the storage (unixfilesystem) resources located on that host:
+ *   repl_T -> pt_T_H -> leaf_T_H_L   (leaf on host host_H)
+ * The trees share their hosts, so every tree has storage resources nearby the other trees.
+ */
+public class Topology {
+	public final IrodsResources resources;
+	public final List<Resource> roots = new ArrayList<Resource>();
+	public final List<Resource> leafs = new ArrayList<Resource>();
+
+	/**
+	 * @param trees          number of root resources
+	 * @param hostsPerTree   number of hosts (passthru resources) per tree
+	 * @param leafsPerHost   number of storage resources per host
+	 */
+	public Topology(int trees, int hostsPerTree, int leafsPerHost) {
+		List<Resource> all = new ArrayList<Resource>();
+		int id = 10000;
+		for (int t = 0; t < trees; t++) {
+			Resource root = new Resource(String.valueOf(id++), "repl_" + t, "EMPTY_RESC_HOST", "replication", "", false);
+			all.add(root);
+			roots.add(root);
+			for (int h = 0; h < hostsPerTree; h++) {
+				String host = "host_" + h;
+				Resource pt = new Resource(String.valueOf(id++), "pt_" + t + "_" + h, "EMPTY_RESC_HOST", "passthru", root.id, false);
+				all.add(pt);
+				for (int l = 0; l < leafsPerHost; l++) {
+					// the first host acts as the server that irelocate is connected to
+					Resource leaf = new Resource(String.valueOf(id++), "leaf_" + t + "_" + h + "_" + l, host, "unixfilesystem",
+							pt.id, h == 0);
+					all.add(leaf);
+					leafs.add(leaf);
+				}
+			}
+		}
+		resources = new IrodsResources(all);
+	}
+
+	/**
+	 * @return total number of resources in the topology
+	 */
+	public int size() {
+		return resources.resources.size();
+	}
+
+	/**
+	 * Creates the replicas of a data object on randomly chosen leafs.
+	 * @param random       source of randomness
+	 * @param dataId       data id of the data object
+	 * @param count        number of replicas
+	 * @param checked      true to set the data file status of good replicas, as after verification
+	 * @return replicas, most are good and perfect, some are stale or have a bad data file
+	 */
+	public List<Replica> replicas(Random random, long dataId, int count, boolean checked) {
+		List<Replica> out = new ArrayList<Replica>(count);
+		for (int i = 0; i < count; i++) {
+			Resource leaf = leafs.get(random.nextInt(leafs.size()));
+			String status = random.nextInt(10) == 0 ? "0" : "1";
+			Replica r = new Replica(String.valueOf(dataId), "/tempZone/home/rods/coll" + dataId / 1000, "obj" + dataId,
+					String.valueOf(i), status, "1048576", "", leaf.name, "/vault/" + leaf.name + "/obj" + dataId);
+			if (checked && r.isGood()) {
+				r.datafileStatus = random.nextInt(20) == 0 ? 0 : 1;
+			}
+			out.add(r);
+		}
+		return out;
+	}
+
+}
@@ -0,0 +1,95 @@
+package nl.tsmeele.irelocate.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.tsmeele.irelocate.WorkQueue;
+
+/**
+ * Handoff of data ids from an enumerator to the processing threads through the work queue,
+ * reported as time per data object. The consumers only claim, complete and release blocks,
+ * so that the cost of the queue itself is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkQueueBenchmark {
+	@Param({ "1", "4", "16" })
+	public int consumers;
+
+	@Param({ "64" })
+	public int blockSize;
+
+	// every 100th data object is large in the variant with a large object lane
+	@Param({ "false", "true" })
+	public boolean largeLane;
+
+	static final int OBJECTS = 100000;
+	static final long LARGE = 1024L * 1024L * 1024L;
+	private ExecutorService executor;
+
+	@Setup
+	public void setup() {
+		executor = Executors.newFixedThreadPool(consumers);
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(OBJECTS)
+	public long handoff() throws Exception {
+		WorkQueue queue = largeLane ? new WorkQueue(blockSize, consumers * 4, LARGE, Math.max(1, consumers / 2)) :
+				new WorkQueue(blockSize, consumers * 4);
+		WorkQueue.Producer producer = queue.newProducer(1L);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for (int i = 0; i < consumers; i++) {
+			results.add(executor.submit(() -> {
+				long claimed = 0L;
+				WorkQueue.Block block;
+				while ((block = queue.claim()) != null) {
+					claimed += block.length;
+					block.range.complete();
+					queue.release(block);
+				}
+				return claimed;
+			}));
+		}
+		for (long dataId = 1L; dataId <= OBJECTS; dataId++) {
+			long size = largeLane && dataId % 100 == 0 ? LARGE : 1024L;
+			while (!producer.offer(dataId, size, 1, TimeUnit.SECONDS)) {
+				// consumers are busy, keep offering
+			}
+		}
+		producer.close();
+		long total = 0L;
+		for (Future<Long> result : results) {
+			total += result.get();
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,242 @@
+package nl.tsmeele.irelocate.simulation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import nl.tsmeele.irelocate.RelocateContext;
+import nl.tsmeele.irelocate.RelocateMain;
+
+/**
+ * Runs irelocate end to end against a simulated data grid, for each combination of mode and
+ * number of threads, and reports the throughput. Everything runs in this JVM: catalog queries,
+ * data file checks, replications, trims and checksums are answered by the grid with the latency
+ * of its profile, so that the effect of e.g. the number of threads, the pipeline or the batch size
+ * can be measured and profiled without an iRODS server.
+ * The load test fails (exit status 1) if a run of irelocate fails, if a data object has lost its
+ * last intact copy, or if a replica was trimmed while the destination had no intact copy.
+ * With -interrupt the grid goes down part way through the first run of irelocate, and a second run
+ * resumes from its checkpoint; the test then also fails if a data object was left unfinished.
+ */
+public class LoadTest {
+	private int objects = 2000;
+	private List<Integer> threads = List.of(8);
+	private List<String> modes = List.of("replicate");
+	private int trees = 3;
+	private int hosts = 10;
+	private int leafs = 2;
+	private double latency = 1.0;
+	private long bytesPerSecond = 0L;
+	private int slots = 0;
+	private double failureRate = 0.0;
+	private double corruptionRate = 0.0;
+	private double atDestination = 0.2;
+	private double stale = 0.01;
+	private double missing = 0.01;
+	private double interrupt = 0.0;
+	private List<String> options = List.of();
+	private long seed = 42L;
+
+	public static void main(String[] args) throws IOException {
+		LoadTest test = new LoadTest();
+		if (!test.processArgs(args)) {
+			System.out.println(usage());
+			System.exit(1);
+		}
+		if (!test.run()) {
+			System.exit(1);
+		}
+	}
+
+	private boolean processArgs(String[] args) {
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String value = i + 1 < args.length ? args[i + 1] : "";
+				switch (args[i].toLowerCase()) {
+					case "-objects":		objects = Integer.parseInt(value); break;
+					case "-threads":		threads = Arrays.stream(value.split(",")).map(Integer::valueOf).collect(Collectors.toList()); break;
+					case "-modes":			modes = Arrays.asList(value.split(",")); break;
+					case "-trees":			trees = Math.max(2, Integer.parseInt(value)); break;
+					case "-hosts":			hosts = Integer.parseInt(value); break;
+					case "-leafs":			leafs = Integer.parseInt(value); break;
+					case "-latency":		latency = Double.parseDouble(value); break;
+					case "-bandwidth":		bytesPerSecond = Long.parseLong(value); break;
+					case "-slots":			slots = Integer.parseInt(value); break;
+					case "-failurerate":	failureRate = Double.parseDouble(value); break;
+					case "-corruptionrate":	corruptionRate = Double.parseDouble(value); break;
+					case "-atdestination":	atDestination = Double.parseDouble(value); break;
+					case "-stale":			stale = Double.parseDouble(value); break;
+					case "-missing":		missing = Double.parseDouble(value); break;
+					case "-interrupt":		interrupt = Double.parseDouble(value); break;
+					case "-seed":			seed = Long.parseLong(value); break;
+					case "-options":		options = Arrays.asList(value.trim().split("\\s+")); break;
+					default:
+						return false;
+				}
+				i++;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return modes.stream().allMatch(m -> m.equals("replicate") || m.equals("trim") || m.equals("move"));
+	}
+
+	private static String usage() {
+		return "Usage: LoadTest [option value]...\n" +
+				"  -objects <n>            number of data objects in the catalog (2000)\n" +
+				"  -threads <n,n,...>      numbers of processing threads to run with (8)\n" +
+				"  -modes <m,m,...>        replicate, trim and/or move (replicate)\n" +
+				"  -trees <n>              resource trees, tree_0 is the destination (3)\n" +
+				"  -hosts <n>              hosts per tree (10)\n" +
+				"  -leafs <n>              storage resources per host (2)\n" +
+				"  -latency <factor>       multiplies the latency of all server operations (1.0)\n" +
+				"  -bandwidth <bytes/s>    speed of a single transfer or checksum (500 MiB/s)\n" +
+				"  -slots <n>              transfers the servers sustain at the same time (32)\n" +
+				"  -failureRate <f>        fraction of replications that fail (0)\n" +
+				"  -corruptionRate <f>     fraction of new replicas that differ from the source (0)\n" +
+				"  -atDestination <f>      fraction of data objects already at the destination (0.2)\n" +
+				"  -stale <f>              fraction of stale source replicas (0.01)\n" +
+				"  -missing <f>            fraction of source replicas without data file (0.01)\n" +
+				"  -interrupt <f>          take the grid down after this fraction of the data objects, then resume\n" +
+				"                          and check that none is left unfinished (0 for no interruption);\n" +
+				"                          replications do not fail and are not corrupted in this test\n" +
+				"  -seed <n>               seed of the generated catalog (42)\n" +
+				"  -options \"<options>\"    additional irelocate options, e.g. \"-pipeline -batch 64\"\n";
+	}
+
+	private SimulatedGrid newGrid() {
+		SimulatedGrid grid = new SimulatedGrid(trees, hosts, leafs);
+		grid.loginMicros = (long) (grid.loginMicros * latency);
+		grid.queryPageMicros = (long) (grid.queryPageMicros * latency);
+		grid.statMicros = (long) (grid.statMicros * latency);
+		grid.statReplicaMicros = (long) (grid.statReplicaMicros * latency);
+		grid.replicateMicros = (long) (grid.replicateMicros * latency);
+		grid.trimMicros = (long) (grid.trimMicros * latency);
+		grid.checksumMicros = (long) (grid.checksumMicros * latency);
+		if (bytesPerSecond > 0L) {
+			grid.bytesPerSecond = bytesPerSecond;
+		}
+		if (slots > 0) {
+			grid.transferSlots = slots;
+		}
+		// after an interruption every data object must be finished, so nothing may fail on its own
+		grid.failureRate = interrupt > 0.0 ? 0.0 : failureRate;
+		grid.corruptionRate = interrupt > 0.0 ? 0.0 : corruptionRate;
+		return grid;
+	}
+
+	/**
+	 * @return true if all runs succeeded and kept the data objects safe
+	 */
+	private boolean run() throws IOException {
+		List<String> report = new ArrayList<String>();
+		List<String> violations = new ArrayList<String>();
+		report.add(String.format("%-10s %8s %9s %9s %10s %13s %8s %9s %15s %9s %6s %10s %10s",
+				"mode", "threads", "objects", "seconds", "objects/s", "replications", "trims", "failures",
+				"at destination", "elsewhere", "lost", "unverified", "unfinished"));
+		for (String mode : modes) {
+			for (int n : threads) {
+				SimulatedGrid grid = newGrid();
+				// trim mode needs data objects that are at the destination already
+				grid.populate(objects, seed, mode.equals("trim") ? Math.max(atDestination, 0.5) : atDestination, stale, missing);
+				Path dir = Files.createTempDirectory("irelocate-load");
+				try {
+					String run = mode + " with " + n + " threads: ";
+					long start = System.nanoTime();
+					if (interrupt > 0.0) {
+						grid.outageAfter = Math.max(1L, (long) (objects * interrupt));
+						runOnce(grid, mode, n, dir, false);
+						if (!grid.isDown()) {
+							violations.add(run + "the grid did not go down, the first run was not interrupted");
+						}
+						System.out.println("Simulated grid is back up, resuming\n");
+						grid.outageAfter = 0L;
+					}
+					int status = runOnce(grid, mode, n, dir, interrupt > 0.0);
+					double seconds = (System.nanoTime() - start) / 1e9;
+					long[] census = grid.census(SimulatedGrid.tree(0));
+					long lost = grid.lost();
+					long unverified = grid.unverifiedTrims.sum();
+					String unfinished = "-";
+					if (interrupt > 0.0) {
+						long count = grid.unfinished(SimulatedGrid.tree(0), !mode.equals("trim"), !mode.equals("replicate"));
+						unfinished = String.valueOf(count);
+						if (count > 0L) {
+							violations.add(run + count + " data objects left unfinished after resuming");
+						}
+					}
+					report.add(String.format("%-10s %8d %9d %9.2f %10.0f %13d %8d %9d %15d %9d %6d %10d %10s",
+							mode, n, grid.size(), seconds, grid.size() / seconds, grid.replications.sum(), grid.trims.sum(),
+							grid.failures.sum(), census[0], census[1], lost, unverified, unfinished));
+					System.out.println("Simulated grid: " + grid.toString() + "\n");
+					if (status != 0) {
+						violations.add(run + "irelocate ended with exit status " + status);
+					}
+					if (lost > 0L) {
+						violations.add(run + lost + " data objects have no intact copy left");
+					}
+					if (unverified > 0L) {
+						violations.add(run + unverified + " replicas trimmed without an intact copy on the destination");
+					}
+				} finally {
+					try (Stream<Path> files = Files.walk(dir)) {
+						files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+					}
+				}
+			}
+		}
+		System.out.println(String.join("\n", report));
+		for (String violation : violations) {
+			System.out.println("FAILED " + violation);
+		}
+		return violations.isEmpty();
+	}
+
+	/**
+	 * @param resume  true to skip the data objects recorded in the checkpoint of an earlier run in dir
+	 * @return exit status of irelocate
+	 */
+	private int runOnce(SimulatedGrid grid, String mode, int threadCount, Path dir, boolean resume) throws IOException {
+		List<String> sources = new ArrayList<String>();
+		for (int t = 1; t < trees; t++) {
+			sources.add(SimulatedGrid.tree(t));
+		}
+		Path ini = dir.resolve("irelocate.ini");
+		Files.write(ini, List.of(
+				"host=" + SimulatedGrid.HOST,
+				"port=1247",
+				"zone=" + SimulatedGrid.ZONE,
+				"username=" + SimulatedGrid.USER,
+				"password=" + SimulatedGrid.PASSWORD,
+				"auth_scheme=native",
+				"destinationResource=" + SimulatedGrid.tree(0),
+				"sourceResources=" + String.join(",", sources)));
+		List<String> args = new ArrayList<String>(List.of(
+				"-config", ini.toString(),
+				"-log", dir.resolve("irelocate.log").toString(),
+				"-checkpoint", dir.resolve("irelocate.checkpoint").toString(),
+				"-threads", String.valueOf(threadCount)));
+		if (!mode.equals("replicate")) {
+			args.add("-" + mode);
+		}
+		if (resume) {
+			args.add("-resume");
+		}
+		for (String option : options) {
+			if (!option.isEmpty()) {
+				args.add(option);
+			}
+		}
+		System.out.println("=== " + mode + ", " + threadCount + " threads: irelocate " + String.join(" ", args));
+		RelocateContext ctx = new RelocateContext();
+		ctx.sessionFactory = (host, port) -> new SimulatedSession(grid, host, port);
+		return RelocateMain.run(ctx, args.toArray(new String[0]));
+	}
+
+}
@@ -0,0 +1,812 @@
+package nl.tsmeele.irelocate.simulation;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import nl.tsmeele.irelocate.CatalogQuery;
+import nl.tsmeele.irelocate.Replica;
+import nl.tsmeele.irelocate.Resource;
+import nl.tsmeele.myrods.api.Columns;
+import nl.tsmeele.myrods.api.Flag;
+
+/**
+ * In-memory data grid that stands in for an iRODS zone: a catalog of data objects and their
+ * replicas, the resource hierarchy and the data files in the vaults. Operations take time
+ * according to a latency profile, so that the behavior of irelocate under load can be observed
+ * without an iRODS server. The grid is shared by all sessions and is thread safe.
+ *
+ * Each tree has a random resource as root, with a passthru resource per host that holds
+ * the storage (unixfilesystem) resources located on that host:
+ *   tree_T -> pt_T_H -> leaf_T_H_L   (leaf on host host_H)
+ * Tree 0 is meant as destination, the other trees hold the data objects to relocate.
+ */
+public class SimulatedGrid {
+	// iRODS error codes reported by the simulated operations
+	static final int SYS_COPY_LEN_ERR = -27000;
+	static final int SYS_INVALID_INPUT_PARAM = -130000;
+	static final int USER_CHKSUM_MISMATCH = -314000;
+	static final int UNIX_FILE_OPEN_ERR_ENOENT = -510002;
+	static final int CAT_NO_ROWS_FOUND = -808000;
+	static final int CAT_INVALID_AUTHENTICATION = -826000;
+
+	private static final Set<Columns> RESOURCE_COLUMNS = EnumSet.of(Columns.RESC_ID, Columns.RESC_NAME,
+			Columns.RESC_LOC, Columns.RESC_TYPE_NAME, Columns.RESC_PARENT);
+	private static final Pattern QUOTED = Pattern.compile("'([^']*)'");
+	private static final Pattern COMPARISON = Pattern.compile("(<>|>=|<=|=|>|<)\\s*'([^']*)'");
+
+	// the server that irelocate connects to
+	public static final String HOST = "host_0";
+	public static final String ZONE = "tempZone";
+	public static final String USER = "rods";
+	public static final String PASSWORD = "rods";
+
+	// latency profile, in microseconds per operation
+	public long loginMicros = 5000L;
+	public long queryPageMicros = 2000L;
+	public long statMicros = 1000L;			// per rule execution
+	public long statReplicaMicros = 20L;		// in addition, per checked data file
+	public long replicateMicros = 3000L;		// in addition to the transfer of the data
+	public long trimMicros = 2000L;
+	public long checksumMicros = 1000L;		// in addition to reading the data
+	public long bytesPerSecond = 500L * 1024L * 1024L;	// per transfer or checksum
+	// number of transfers and checksums the servers sustain at the same time
+	public int transferSlots = 32;
+	// fraction of replications that fail, and of new replicas that silently differ from the source
+	public double failureRate = 0.0;
+	public double corruptionRate = 0.0;
+	// the grid fails every operation once this many replications and trims have been carried out, 0 for never
+	public volatile long outageAfter = 0L;
+
+	public final List<Resource> resources = new ArrayList<Resource>();
+	private final Map<String,List<String>> leafs = new HashMap<String,List<String>>();
+	private final ConcurrentSkipListMap<Long,DataObject> objects = new ConcurrentSkipListMap<Long,DataObject>();
+	private Semaphore transfers = null;
+
+	// counts of the operations carried out, for the report of a load test
+	public final LongAdder logins = new LongAdder();
+	public final LongAdder queries = new LongAdder();
+	public final LongAdder pages = new LongAdder();
+	public final LongAdder stats = new LongAdder();
+	public final LongAdder replications = new LongAdder();
+	public final LongAdder trims = new LongAdder();
+	public final LongAdder checksums = new LongAdder();
+	public final LongAdder failures = new LongAdder();
+	// trims that left the data object without an intact replica on the destination (tree 0)
+	public final LongAdder unverifiedTrims = new LongAdder();
+
+	private static class DataObject {
+		final long dataId;
+		final String collName, dataName;
+		final long size;
+		final List<SimulatedReplica> replicas = new ArrayList<SimulatedReplica>(2);
+		// true if a data file held the content of the data object when the grid was populated
+		boolean hadContent = false;
+
+		DataObject(long dataId, String collName, String dataName, long size) {
+			this.dataId = dataId;
+			this.collName = collName;
+			this.dataName = dataName;
+			this.size = size;
+		}
+	}
+
+	private static class SimulatedReplica {
+		int replNum;
+		String status, checksum, resc, dataPath, modifyTime;
+		// state of the data file in the vault, size -1 if the file is missing
+		long fileSize;
+		String fileChecksum;
+	}
+
+	/**
+	 * @param trees          number of root resources
+	 * @param hostsPerTree   number of hosts (passthru resources) per tree
+	 * @param leafsPerHost   number of storage resources per host
+	 */
+	public SimulatedGrid(int trees, int hostsPerTree, int leafsPerHost) {
+		int id = 10000;
+		for (int t = 0; t < trees; t++) {
+			Resource root = new Resource(String.valueOf(id++), tree(t), "EMPTY_RESC_HOST", "random", "", false);
+			resources.add(root);
+			List<String> treeLeafs = new ArrayList<String>();
+			for (int h = 0; h < hostsPerTree; h++) {
+				Resource pt = new Resource(String.valueOf(id++), "pt_" + t + "_" + h, "EMPTY_RESC_HOST", "passthru", root.id, false);
+				resources.add(pt);
+				List<String> hostLeafs = new ArrayList<String>();
+				for (int l = 0; l < leafsPerHost; l++) {
+					Resource leaf = new Resource(String.valueOf(id++), "leaf_" + t + "_" + h + "_" + l, "host_" + h,
+							"unixfilesystem", pt.id, false);
+					resources.add(leaf);
+					hostLeafs.add(leaf.name);
+					leafs.put(leaf.name, List.of(leaf.name));
+				}
+				leafs.put(pt.name, hostLeafs);
+				treeLeafs.addAll(hostLeafs);
+			}
+			leafs.put(root.name, treeLeafs);
+		}
+	}
+
+	/**
+	 * @return name of the root resource of a tree
+	 */
+	public static String tree(int t) {
+		return "tree_" + t;
+	}
+
+	/**
+	 * Registers data objects with a good replica on a leaf of one of the source trees (all trees but
+	 * tree 0), starting at data id 10000. Sizes vary from 1 KiB to 64 MiB, most data objects are small.
+	 * @param count              number of data objects
+	 * @param seed               seed of the random choices, the same seed gives the same catalog
+	 * @param atDestination      fraction of the data objects that also have a replica on tree 0
+	 * @param stale              fraction of the source replicas that are stale
+	 * @param missingFile        fraction of the source replicas of which the data file is missing
+	 */
+	public void populate(int count, long seed, double atDestination, double stale, double missingFile) {
+		Random random = new Random(seed);
+		int trees = resources.stream().filter(r -> r.parent.isEmpty()).mapToInt(r -> 1).sum();
+		for (int i = 0; i < count; i++) {
+			long dataId = 10000L + i * 3L;
+			long size = 1024L << random.nextInt(17);
+			size += random.nextInt((int) Math.min(size, Integer.MAX_VALUE));
+			DataObject obj = new DataObject(dataId, "/" + ZONE + "/home/" + USER + "/coll" + (i / 1000), "obj" + i, size);
+			String source = leafOf(tree(1 + random.nextInt(Math.max(1, trees - 1))), random.nextInt(Integer.MAX_VALUE));
+			SimulatedReplica r = addReplica(obj, source, contentChecksum(dataId));
+			if (random.nextDouble() < stale) {
+				r.status = "0";
+			}
+			if (random.nextDouble() < missingFile) {
+				r.fileSize = -1L;
+			}
+			// a registered checksum on some of the data objects
+			r.checksum = random.nextInt(4) == 0 ? r.fileChecksum : "";
+			if (random.nextDouble() < atDestination) {
+				addReplica(obj, leafOf(tree(0), random.nextInt(Integer.MAX_VALUE)), contentChecksum(dataId));
+			}
+			obj.hadContent = obj.replicas.stream().anyMatch(x -> hasContent(obj, x));
+			objects.put(dataId, obj);
+		}
+	}
+
+	private String leafOf(String resc, int choice) {
+		List<String> candidates = leafs.get(resc);
+		if (candidates == null || candidates.isEmpty()) {
+			return null;
+		}
+		return candidates.get(Math.floorMod(choice, candidates.size()));
+	}
+
+	private static SimulatedReplica addReplica(DataObject obj, String resc, String fileChecksum) {
+		SimulatedReplica r = new SimulatedReplica();
+		r.replNum = obj.replicas.stream().mapToInt(x -> x.replNum + 1).max().orElse(0);
+		r.status = "1";
+		r.checksum = "";
+		r.resc = resc;
+		r.dataPath = "/vault/" + resc + obj.collName + "/" + obj.dataName;
+		r.modifyTime = String.valueOf(System.currentTimeMillis() / 1000L);
+		r.fileSize = obj.size;
+		r.fileChecksum = fileChecksum;
+		obj.replicas.add(r);
+		return r;
+	}
+
+	/**
+	 * @return true if the data file of the replica holds the content of the data object
+	 */
+	private static boolean hasContent(DataObject obj, SimulatedReplica r) {
+		return r.fileSize == obj.size && contentChecksum(obj.dataId).equals(r.fileChecksum);
+	}
+
+	private static String contentChecksum(long dataId) {
+		long h = dataId * 0x9E3779B97F4A7C15L;
+		byte[] digest = new byte[16];
+		for (int i = 0; i < digest.length; i++) {
+			h ^= h >>> 29;
+			h *= 0xBF58476D1CE4E5B9L;
+			digest[i] = (byte) h;
+		}
+		return "sha2:" + Base64.getEncoder().encodeToString(digest);
+	}
+
+	/**
+	 * Lets the calling thread wait, as if waiting for the server.
+	 */
+	static void pause(long micros) {
+		if (micros <= 0L) {
+			return;
+		}
+		long deadline = System.nanoTime() + micros * 1000L;
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0L) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	private long transferMicros(long size) {
+		return bytesPerSecond <= 0L ? 0L : size * 1000000L / bytesPerSecond;
+	}
+
+	private void transfer(long micros) {
+		Semaphore slots;
+		synchronized (this) {
+			if (transfers == null) {
+				transfers = new Semaphore(Math.max(1, transferSlots));
+			}
+			slots = transfers;
+		}
+		slots.acquireUninterruptibly();
+		try {
+			pause(micros);
+		} finally {
+			slots.release();
+		}
+	}
+
+	/*
+	 * catalog queries
+	 */
+
+	/**
+	 * Answers a general query. Like the iRODS catalog, rows of a query without aggregates are
+	 * distinct, and aggregates are grouped by the non-aggregated columns.
+	 * @return rows of the result, data objects are visited in ascending data id order
+	 */
+	public Iterator<String[]> query(CatalogQuery query) {
+		Map<Columns,Integer> select = query.selected();
+		Map<Columns,Predicate<String>> where = new LinkedHashMap<Columns,Predicate<String>>();
+		for (Map.Entry<Columns,String> e : query.conditions().entrySet()) {
+			where.put(e.getKey(), condition(e.getKey(), e.getValue()));
+		}
+		if (!RESOURCE_COLUMNS.containsAll(select.keySet()) && !isDisjoint(select.keySet())) {
+			throw new IllegalArgumentException("resource and data object columns combined: " + query);
+		}
+		Iterator<String[]> rows = RESOURCE_COLUMNS.containsAll(select.keySet()) ?
+				resourceRows(select.keySet(), where) :
+				dataRows(select.keySet(), where, query.conditions().get(Columns.DATA_ID));
+		boolean aggregate = select.values().stream().anyMatch(f -> (f & ~Flag.ORDER_BY) != Flag.SELECT_NORMAL);
+		if (aggregate) {
+			return aggregate(new ArrayList<Integer>(select.values()), rows);
+		}
+		if (!select.containsKey(Columns.DATA_ID)) {
+			// rows of different data objects may be equal
+			Set<List<String>> distinct = new LinkedHashSet<List<String>>();
+			rows.forEachRemaining(row -> distinct.add(List.of(row)));
+			return distinct.stream().map(row -> row.toArray(new String[0])).iterator();
+		}
+		return rows;
+	}
+
+	private static boolean isDisjoint(Set<Columns> columns) {
+		for (Columns c : columns) {
+			if (RESOURCE_COLUMNS.contains(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Iterator<String[]> resourceRows(Set<Columns> select, Map<Columns,Predicate<String>> where) {
+		List<String[]> out = new ArrayList<String[]>();
+		for (Resource r : resources) {
+			if (matches(where, c -> resourceValue(r, c))) {
+				out.add(select.stream().map(c -> resourceValue(r, c)).toArray(String[]::new));
+			}
+		}
+		return out.iterator();
+	}
+
+	private static String resourceValue(Resource r, Columns column) {
+		switch (column) {
+			case RESC_ID:			return r.id;
+			case RESC_NAME:			return r.name;
+			case RESC_LOC:			return r.loc;
+			case RESC_TYPE_NAME:	return r.type;
+			case RESC_PARENT:		return r.parent;
+			default:
+				throw new IllegalArgumentException("Column not simulated: " + column);
+		}
+	}
+
+	/**
+	 * Produces the rows of the replicas that match the conditions while the caller iterates,
+	 * the rows of a data object are distinct.
+	 */
+	private Iterator<String[]> dataRows(Set<Columns> select, Map<Columns,Predicate<String>> where, String dataIdCondition) {
+		Iterator<DataObject> candidates = candidates(dataIdCondition).values().iterator();
+		return new Iterator<String[]>() {
+			private Iterator<String[]> current = null;
+
+			@Override
+			public boolean hasNext() {
+				while (current == null || !current.hasNext()) {
+					if (!candidates.hasNext()) {
+						return false;
+					}
+					DataObject obj = candidates.next();
+					Set<List<String>> rows = new LinkedHashSet<List<String>>();
+					synchronized (obj) {
+						for (SimulatedReplica r : obj.replicas) {
+							if (matches(where, c -> dataValue(obj, r, c))) {
+								rows.add(select.stream().map(c -> dataValue(obj, r, c)).collect(Collectors.toList()));
+							}
+						}
+					}
+					current = rows.stream().map(row -> row.toArray(new String[0])).iterator();
+				}
+				return true;
+			}
+
+			@Override
+			public String[] next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return current.next();
+			}
+		};
+	}
+
+	/**
+	 * @return data objects that may satisfy the condition on the data id
+	 */
+	private NavigableMap<Long,DataObject> candidates(String condition) {
+		if (condition == null) {
+			return objects;
+		}
+		String c = condition.trim();
+		List<String> values = quoted(c);
+		try {
+			if (c.startsWith("between") && values.size() == 2) {
+				long from = Long.parseLong(values.get(0));
+				long to = Long.parseLong(values.get(1));
+				return from > to ? new TreeMap<Long,DataObject>() : objects.subMap(from, true, to, true);
+			}
+			if (c.startsWith("in")) {
+				NavigableMap<Long,DataObject> out = new TreeMap<Long,DataObject>();
+				for (String value : values) {
+					DataObject obj = objects.get(Long.parseLong(value));
+					if (obj != null) {
+						out.put(obj.dataId, obj);
+					}
+				}
+				return out;
+			}
+			if (c.startsWith(">=")) {
+				return objects.tailMap(Long.parseLong(values.get(0)), true);
+			}
+			if (c.startsWith("=")) {
+				long value = Long.parseLong(values.get(0));
+				return objects.subMap(value, true, value, true);
+			}
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			// not a plain range, the condition is evaluated for each data object
+		}
+		return objects;
+	}
+
+	private static String dataValue(DataObject obj, SimulatedReplica r, Columns column) {
+		switch (column) {
+			case DATA_ID:			return String.valueOf(obj.dataId);
+			case COLL_NAME:			return obj.collName;
+			case DATA_NAME:			return obj.dataName;
+			case DATA_REPL_NUM:		return String.valueOf(r.replNum);
+			case DATA_REPL_STATUS:	return r.status;
+			case DATA_SIZE:			return String.valueOf(obj.size);
+			case DATA_CHECKSUM:		return r.checksum;
+			case DATA_RESC_NAME:	return r.resc;
+			case DATA_PATH:			return r.dataPath;
+			case DATA_MODIFY_TIME:	return r.modifyTime;
+			default:
+				throw new IllegalArgumentException("Column not simulated: " + column);
+		}
+	}
+
+	private static boolean matches(Map<Columns,Predicate<String>> where, Function<Columns,String> value) {
+		for (Map.Entry<Columns,Predicate<String>> e : where.entrySet()) {
+			if (!e.getValue().test(value.apply(e.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<String> quoted(String condition) {
+		List<String> out = new ArrayList<String>();
+		Matcher m = QUOTED.matcher(condition);
+		while (m.find()) {
+			out.add(m.group(1));
+		}
+		return out;
+	}
+
+	/**
+	 * @return test of a column value against a condition in general query syntax
+	 */
+	static Predicate<String> condition(Columns column, String condition) {
+		String c = condition.trim();
+		if (c.startsWith("in")) {
+			Set<String> values = new HashSet<String>(quoted(c));
+			return v -> values.contains(v);
+		}
+		if (c.startsWith("between")) {
+			List<String> values = quoted(c);
+			if (values.size() != 2) {
+				throw new IllegalArgumentException("Invalid condition on " + column + ": " + condition);
+			}
+			return v -> compare(v, values.get(0)) >= 0 && compare(v, values.get(1)) <= 0;
+		}
+		Matcher m = COMPARISON.matcher(c);
+		if (!m.matches()) {
+			throw new IllegalArgumentException("Condition not simulated on " + column + ": " + condition);
+		}
+		String value = m.group(2);
+		switch (m.group(1)) {
+			case "=":	return v -> compare(v, value) == 0;
+			case "<>":	return v -> compare(v, value) != 0;
+			case ">=":	return v -> compare(v, value) >= 0;
+			case "<=":	return v -> compare(v, value) <= 0;
+			case ">":	return v -> compare(v, value) > 0;
+			default:	return v -> compare(v, value) < 0;
+		}
+	}
+
+	/**
+	 * Compares numbers by value and other values as text, like the catalog compares its columns.
+	 */
+	private static int compare(String a, String b) {
+		try {
+			return Long.compare(Long.parseLong(a), Long.parseLong(b));
+		} catch (NumberFormatException e) {
+			return a.compareTo(b);
+		}
+	}
+
+	private static Iterator<String[]> aggregate(List<Integer> flags, Iterator<String[]> rows) {
+		Map<List<String>,Object[]> groups = new LinkedHashMap<List<String>,Object[]>();
+		while (rows.hasNext()) {
+			String[] row = rows.next();
+			List<String> key = new ArrayList<String>();
+			for (int i = 0; i < row.length; i++) {
+				if (select(flags.get(i)) == Flag.SELECT_NORMAL) {
+					key.add(row[i]);
+				}
+			}
+			Object[] acc = groups.computeIfAbsent(key, k -> new Object[row.length]);
+			for (int i = 0; i < row.length; i++) {
+				acc[i] = accumulate(select(flags.get(i)), acc[i], row[i]);
+			}
+		}
+		if (groups.isEmpty() && flags.stream().noneMatch(f -> select(f) == Flag.SELECT_NORMAL)) {
+			// aggregates over no rows at all still give a row, with empty values
+			groups.put(List.of(), new Object[flags.size()]);
+		}
+		List<String[]> out = new ArrayList<String[]>();
+		for (Object[] acc : groups.values()) {
+			String[] row = new String[acc.length];
+			for (int i = 0; i < acc.length; i++) {
+				row[i] = result(select(flags.get(i)), acc[i]);
+			}
+			out.add(row);
+		}
+		return out.iterator();
+	}
+
+	private static int select(int flags) {
+		return flags & ~Flag.ORDER_BY;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object accumulate(int select, Object acc, String value) {
+		if (select == Flag.SELECT_MIN) {
+			return acc == null || compare(value, (String) acc) < 0 ? value : acc;
+		}
+		if (select == Flag.SELECT_MAX) {
+			return acc == null || compare(value, (String) acc) > 0 ? value : acc;
+		}
+		if (select == Flag.SELECT_COUNT) {
+			Set<String> seen = acc == null ? new HashSet<String>() : (Set<String>) acc;
+			seen.add(value);
+			return seen;
+		}
+		if (select == Flag.SELECT_SUM || select == Flag.SELECT_AVG) {
+			long[] sum = acc == null ? new long[2] : (long[]) acc;
+			sum[0] += Long.parseLong(value);
+			sum[1]++;
+			return sum;
+		}
+		return value;
+	}
+
+	private static String result(int select, Object acc) {
+		if (select == Flag.SELECT_COUNT) {
+			return String.valueOf(acc == null ? 0 : ((Set<?>) acc).size());
+		}
+		if (acc == null) {
+			return "";
+		}
+		if (select == Flag.SELECT_SUM) {
+			return String.valueOf(((long[]) acc)[0]);
+		}
+		if (select == Flag.SELECT_AVG) {
+			long[] sum = (long[]) acc;
+			return String.valueOf(sum[0] / sum[1]);
+		}
+		return (String) acc;
+	}
+
+	/*
+	 * operations on replicas and data files
+	 */
+
+	/**
+	 * @return status of the data file of each replica: 1 if it has the size registered in
+	 *  the catalog, 0 if its size differs, -1 if it is missing
+	 */
+	public int[] datafileStatus(List<Replica> replicas) {
+		stats.add(replicas.size());
+		pause(statMicros + statReplicaMicros * replicas.size());
+		int[] out = new int[replicas.size()];
+		for (int i = 0; i < out.length; i++) {
+			Replica replica = replicas.get(i);
+			out[i] = -1;
+			DataObject obj = objects.get(Long.parseLong(replica.dataId));
+			if (obj == null) {
+				continue;
+			}
+			synchronized (obj) {
+				for (SimulatedReplica r : obj.replicas) {
+					if (r.resc.equals(replica.dataRescName) && r.dataPath.equals(replica.dataPath) && r.fileSize >= 0L) {
+						out[i] = String.valueOf(r.fileSize).equals(replica.dataSize) ? 1 : 0;
+					}
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Replicates the data object from the source replica to a storage resource of the destination.
+	 * @return 0 on success, otherwise an iRODS error code
+	 */
+	public int replicate(Replica source, String destResource, boolean doChecksum) {
+		DataObject obj = objects.get(Long.parseLong(source.dataId));
+		if (obj == null) {
+			return fail(CAT_NO_ROWS_FOUND);
+		}
+		String leaf = leafOf(destResource, (int) obj.dataId);
+		if (leaf == null) {
+			return fail(SYS_INVALID_INPUT_PARAM);
+		}
+		String fileChecksum;
+		synchronized (obj) {
+			SimulatedReplica from = replica(obj, source.dataReplNum);
+			if (from == null) {
+				return fail(CAT_NO_ROWS_FOUND);
+			}
+			if (from.fileSize < 0L) {
+				return fail(UNIX_FILE_OPEN_ERR_ENOENT);
+			}
+			if (from.fileSize != obj.size) {
+				return fail(SYS_COPY_LEN_ERR);
+			}
+			fileChecksum = from.fileChecksum;
+		}
+		pause(replicateMicros);
+		transfer(transferMicros(obj.size));
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (random.nextDouble() < failureRate) {
+			return fail(SYS_COPY_LEN_ERR);
+		}
+		if (random.nextDouble() < corruptionRate) {
+			fileChecksum = fileChecksum + "-corrupt";
+		}
+		synchronized (obj) {
+			if (doChecksum && !fileChecksum.equals(contentChecksum(obj.dataId))) {
+				return fail(USER_CHKSUM_MISMATCH);
+			}
+			SimulatedReplica to = null;
+			for (SimulatedReplica r : obj.replicas) {
+				if (r.resc.equals(leaf)) {
+					to = r;
+				}
+			}
+			if (to == null) {
+				to = addReplica(obj, leaf, fileChecksum);
+			}
+			to.status = "1";
+			to.fileSize = obj.size;
+			to.fileChecksum = fileChecksum;
+			to.checksum = doChecksum ? fileChecksum : "";
+		}
+		replications.increment();
+		return 0;
+	}
+
+	/**
+	 * Removes the replica, provided that the data object keeps another good replica.
+	 * @return 0 on success, otherwise an iRODS error code
+	 */
+	public int trim(Replica replica) {
+		pause(trimMicros);
+		DataObject obj = objects.get(Long.parseLong(replica.dataId));
+		if (obj == null) {
+			return fail(CAT_NO_ROWS_FOUND);
+		}
+		synchronized (obj) {
+			SimulatedReplica r = replica(obj, replica.dataReplNum);
+			if (r == null) {
+				return fail(CAT_NO_ROWS_FOUND);
+			}
+			long others = obj.replicas.stream().filter(x -> x != r && x.status.equals("1")).count();
+			if (others < 1) {
+				return fail(SYS_INVALID_INPUT_PARAM);
+			}
+			// irelocate must not trim before the destination holds a good copy of the content
+			List<String> destination = leafs.get(tree(0));
+			if (obj.replicas.stream().noneMatch(x -> x != r && x.status.equals("1") && destination.contains(x.resc) &&
+					hasContent(obj, x))) {
+				unverifiedTrims.increment();
+			}
+			obj.replicas.remove(r);
+		}
+		trims.increment();
+		return 0;
+	}
+
+	/**
+	 * Calculates the checksum of the data file of a replica and registers it in the catalog.
+	 * @param replica  replica to checksum, selected by data id and replica number
+	 * @return checksum, or null if there is no such replica or data file
+	 */
+	public String checksum(Replica replica) {
+		DataObject obj = objects.get(Long.parseLong(replica.dataId));
+		if (obj == null) {
+			failures.increment();
+			return null;
+		}
+		pause(checksumMicros);
+		transfer(transferMicros(obj.size));
+		synchronized (obj) {
+			SimulatedReplica r = replica(obj, replica.dataReplNum);
+			if (r != null && r.fileSize >= 0L) {
+				r.checksum = r.fileChecksum;
+				checksums.increment();
+				return r.fileChecksum;
+			}
+		}
+		failures.increment();
+		return null;
+	}
+
+	private static SimulatedReplica replica(DataObject obj, String replNum) {
+		for (SimulatedReplica r : obj.replicas) {
+			if (String.valueOf(r.replNum).equals(replNum)) {
+				return r;
+			}
+		}
+		return null;
+	}
+
+	private int fail(int status) {
+		failures.increment();
+		return status;
+	}
+
+	/**
+	 * @return true if the grid fails every operation, as during an outage
+	 */
+	public boolean isDown() {
+		long after = outageAfter;
+		return after > 0L && replications.sum() + trims.sum() >= after;
+	}
+
+	/*
+	 * outcome of a run
+	 */
+
+	/**
+	 * @return number of data objects in the catalog
+	 */
+	public int size() {
+		return objects.size();
+	}
+
+	/**
+	 * Counts the data objects by where their good replicas are.
+	 * @param destination  root resource of the destination
+	 * @return number of data objects with a good replica on the destination, and of those that
+	 *  also have a replica elsewhere
+	 */
+	public long[] census(String destination) {
+		Set<String> dest = new HashSet<String>(leafs.getOrDefault(destination, List.of()));
+		long[] out = new long[2];
+		for (DataObject obj : objects.values()) {
+			synchronized (obj) {
+				if (obj.replicas.stream().anyMatch(r -> dest.contains(r.resc) && r.status.equals("1"))) {
+					out[0]++;
+					if (obj.replicas.stream().anyMatch(r -> !dest.contains(r.resc))) {
+						out[1]++;
+					}
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * @return number of data objects that had a data file with their content, but have none left
+	 */
+	public long lost() {
+		long lost = 0L;
+		for (DataObject obj : objects.values()) {
+			synchronized (obj) {
+				if (obj.hadContent && obj.replicas.stream().noneMatch(r -> hasContent(obj, r))) {
+					lost++;
+				}
+			}
+		}
+		return lost;
+	}
+
+	/**
+	 * Counts the data objects that a complete run of irelocate would have finished, but that are not.
+	 * A data object can be finished if it has a perfect replica: status good and a data file of the
+	 * registered size.
+	 * @param destination  root resource of the destination
+	 * @param replicate  true if such a data object should have a good replica on the destination
+	 * @param trim       true if a data object with a perfect replica on the destination should have no good
+	 *                   replica elsewhere
+	 * @return number of data objects not finished
+	 */
+	public long unfinished(String destination, boolean replicate, boolean trim) {
+		Set<String> dest = new HashSet<String>(leafs.getOrDefault(destination, List.of()));
+		long unfinished = 0L;
+		for (DataObject obj : objects.values()) {
+			synchronized (obj) {
+				boolean perfect = obj.replicas.stream().anyMatch(r -> isPerfect(obj, r));
+				boolean atDestination = obj.replicas.stream().anyMatch(r -> dest.contains(r.resc) && r.status.equals("1"));
+				boolean perfectAtDestination = obj.replicas.stream().anyMatch(r -> dest.contains(r.resc) && isPerfect(obj, r));
+				boolean elsewhere = obj.replicas.stream().anyMatch(r -> !dest.contains(r.resc) && r.status.equals("1"));
+				if (replicate && perfect && !atDestination || trim && perfectAtDestination && elsewhere) {
+					unfinished++;
+				}
+			}
+		}
+		return unfinished;
+	}
+
+	private static boolean isPerfect(DataObject obj, SimulatedReplica r) {
+		return r.status.equals("1") && r.fileSize == obj.size;
+	}
+
+	public String toString() {
+		return "queries " + queries.sum() + " (" + pages.sum() + " pages), stats " + stats.sum() +
+				", replications " + replications.sum() + ", trims " + trims.sum() + ", checksums " + checksums.sum() +
+				", failures " + failures.sum() + ", logins " + logins.sum();
+	}
+
+}
@@ -0,0 +1,152 @@
+package nl.tsmeele.irelocate.simulation;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import nl.tsmeele.irelocate.CatalogQuery;
+import nl.tsmeele.irelocate.IrodsSession;
+import nl.tsmeele.irelocate.Replica;
+
+/**
+ * Session on a simulated data grid. It never connects to a server: the operations of irelocate
+ * are answered by the grid, with the latency of the grid's profile. Like a real session it is
+ * used by one thread at a time, and reports failures through error() and intInfo(). While the grid
+ * is down every operation except the login fails with an IOException, as if the connection was lost.
+ */
+public class SimulatedSession implements IrodsSession {
+	private final SimulatedGrid grid;
+	private final String host;
+	private boolean authenticated = false;
+	private boolean error = false;
+	private int intInfo = 0;
+
+	public SimulatedSession(SimulatedGrid grid, String host, int port) {
+		this.grid = grid;
+		this.host = host;
+	}
+
+	@Override
+	public boolean nativeLogin(String userName, String zone, String password, String proxyUser, String proxyZone) {
+		return login(userName, password);
+	}
+
+	@Override
+	public boolean pamLogin(String userName, String zone, String password, String proxyUser, String proxyZone) {
+		return login(userName, password);
+	}
+
+	private boolean login(String userName, String password) {
+		SimulatedGrid.pause(grid.loginMicros);
+		grid.logins.increment();
+		authenticated = SimulatedGrid.USER.equals(userName) && SimulatedGrid.PASSWORD.equals(password);
+		return status(authenticated ? 0 : SimulatedGrid.CAT_INVALID_AUTHENTICATION);
+	}
+
+	@Override
+	public String getUserType(String userName, String zone) {
+		return SimulatedGrid.USER.equals(userName) ? "rodsadmin" : null;
+	}
+
+	@Override
+	public void rcDisconnect() {
+		authenticated = false;
+	}
+
+	@Override
+	public boolean isAuthenticated() {
+		return authenticated;
+	}
+
+	@Override
+	public String getHost() {
+		return host;
+	}
+
+	@Override
+	public boolean error() {
+		return error;
+	}
+
+	@Override
+	public int intInfo() {
+		return intInfo;
+	}
+
+	@Override
+	public Iterator<String[]> query(CatalogQuery query) throws IOException {
+		checkAvailable();
+		status(0);
+		grid.queries.increment();
+		Iterator<String[]> rows = grid.query(query);
+		int pageSize = Math.max(1, query.pageSize());
+		// each page of the result takes a round trip to the server
+		return new Iterator<String[]>() {
+			private long returned = 0L;
+			private boolean fetched = false;
+
+			@Override
+			public boolean hasNext() {
+				if (!fetched) {
+					SimulatedGrid.pause(grid.queryPageMicros);
+					grid.pages.increment();
+					fetched = true;
+				}
+				return rows.hasNext();
+			}
+
+			@Override
+			public String[] next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				if (++returned % pageSize == 0) {
+					// the next row is on the next page
+					fetched = false;
+				}
+				return rows.next();
+			}
+		};
+	}
+
+	@Override
+	public int[] datafileStatus(List<Replica> replicas) throws IOException {
+		checkAvailable();
+		status(0);
+		return grid.datafileStatus(replicas);
+	}
+
+	@Override
+	public boolean replicate(Replica source, String destResource, boolean doChecksum) throws IOException {
+		checkAvailable();
+		return status(grid.replicate(source, destResource, doChecksum));
+	}
+
+	@Override
+	public boolean trim(Replica replica) throws IOException {
+		checkAvailable();
+		return status(grid.trim(replica));
+	}
+
+	@Override
+	public String checksum(Replica replica) throws IOException {
+		checkAvailable();
+		String checksum = grid.checksum(replica);
+		status(checksum == null ? SimulatedGrid.UNIX_FILE_OPEN_ERR_ENOENT : 0);
+		return checksum;
+	}
+
+	private void checkAvailable() throws IOException {
+		if (grid.isDown()) {
+			throw new IOException("Connection reset (simulated outage)");
+		}
+	}
+
+	private boolean status(int status) {
+		error = status < 0;
+		intInfo = status;
+		return !error;
+	}
+
+}
@@ -0,0 +1,100 @@
+package nl.tsmeele.irelocate;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nl.tsmeele.myrods.api.Columns;
+import nl.tsmeele.myrods.plumbing.MyRodsException;
+
+/**
+ * General query on the iRODS catalog: the selected columns with their select flags, in the order
+ * of the columns of the result rows, and a condition per column.
+ */
+public class CatalogQuery {
+	static final int MAX_ROWS = 256;
+	private final Map<Columns,Integer> select = new LinkedHashMap<Columns,Integer>();
+	private final Map<Columns,String> where = new LinkedHashMap<Columns,String>();
+	private int maxRows = MAX_ROWS;
+
+	/**
+	 * @param column  column to add to the result rows
+	 * @param flags   select flags, e.g. Flag.SELECT_NORMAL | Flag.ORDER_BY or Flag.SELECT_MIN
+	 */
+	public CatalogQuery select(Columns column, int flags) {
+		select.put(column, flags);
+		return this;
+	}
+
+	/**
+	 * @param column     column to restrict
+	 * @param condition  condition in general query syntax, e.g. "in ('a','b')" or ">= '10'"
+	 */
+	public CatalogQuery where(Columns column, String condition) {
+		where.put(column, condition);
+		return this;
+	}
+
+	/**
+	 * @param maxRows  number of rows fetched per page
+	 */
+	public CatalogQuery maxRows(int maxRows) {
+		this.maxRows = maxRows;
+		return this;
+	}
+
+	/**
+	 * @return selected columns and their flags, in order
+	 */
+	public Map<Columns,Integer> selected() {
+		return Collections.unmodifiableMap(select);
+	}
+
+	/**
+	 * @return condition per column
+	 */
+	public Map<Columns,String> conditions() {
+		return Collections.unmodifiableMap(where);
+	}
+
+	/**
+	 * @return number of rows fetched per page
+	 */
+	public int pageSize() {
+		return maxRows;
+	}
+
+	/**
+	 * Executes the query, the rows are fetched page by page while the caller iterates.
+	 * @param hirods  authenticated iRODS session, must remain open during the iteration
+	 * @return rows of the result, with a value for each selected column
+	 */
+	public Iterator<String[]> execute(IrodsSession hirods) throws MyRodsException, IOException {
+		return hirods.query(this);
+	}
+
+	/**
+	 * @return the values as a list for an 'in' condition, e.g. 'a','b'
+	 */
+	static String quotedList(Collection<String> values) {
+		StringBuilder sb = new StringBuilder();
+		boolean first = true;
+		for (String value : values) {
+			if (first) {
+				first = false;
+			} else {
+				sb.append(",");
+			}
+			sb.append("'" + value + "'");
+		}
+		return sb.toString();
+	}
+
+	public String toString() {
+		return "select " + select + " where " + where;
+	}
+
+}
@@ -0,0 +1,211 @@
+package nl.tsmeele.irelocate;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import nl.tsmeele.log.Log;
+
+/**
+ * Records which ranges of data ids have been processed, so that an interrupted run can be resumed.
+ * Because data objects are enumerated in order of data id, completed work coalesces into a
+ * few ranges: a low watermark range plus the blocks that completed out of order. The memory
+ * and file size needed are therefore independent of the number of data objects.
+ */
+public class Checkpoint {
+	static final long SAVE_INTERVAL_SECONDS = 10L;
+	private static final String HEADER = "# " + RelocateContext.PROGRAM_NAME + " checkpoint";
+	private String path;
+	private String runId;
+	// completed ranges: first data id -> last data id (inclusive), ranges never overlap or touch
+	private TreeMap<Long,Long> done = new TreeMap<Long,Long>();
+	private boolean dirty = false;
+	private ScheduledExecutorService writer = null;
+
+	/**
+	 * @param path   file used to save the checkpoint
+	 * @param runId  description of the run parameters, a checkpoint can only be resumed with the same parameters
+	 */
+	public Checkpoint(String path, String runId) {
+		this.path = path;
+		this.runId = runId;
+	}
+
+	/**
+	 * Loads the ranges recorded by an earlier run.
+	 * @return false if the checkpoint file does not exist
+	 * @throws IOException if the file cannot be read or was recorded for other run parameters
+	 */
+	public synchronized boolean load() throws IOException {
+		BufferedReader br;
+		try {
+			br = new BufferedReader(new FileReader(path));
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+		try {
+			String line = br.readLine();
+			if (line == null || !line.equals(HEADER)) {
+				throw new IOException("File " + path + " is not a checkpoint file");
+			}
+			line = br.readLine();
+			if (line == null || !line.equals(runId)) {
+				throw new IOException("Checkpoint " + path + " was recorded for a run with other resources or mode: " + line);
+			}
+			while ((line = br.readLine()) != null) {
+				String[] range = line.trim().split(" ");
+				if (range.length == 2) {
+					add(Long.parseLong(range[0]), Long.parseLong(range[1]));
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Checkpoint " + path + " is corrupt");
+		} finally {
+			br.close();
+		}
+		return true;
+	}
+
+	/**
+	 * @param startDataId  lowest data id requested
+	 * @return lowest data id, not less than startDataId, that has not been processed yet
+	 */
+	public synchronized long resumeFrom(long startDataId) {
+		Map.Entry<Long,Long> range = done.floorEntry(startDataId);
+		if (range != null && range.getValue() >= startDataId) {
+			return range.getValue() + 1;
+		}
+		return startDataId;
+	}
+
+	public synchronized boolean isDone(long dataId) {
+		Map.Entry<Long,Long> range = done.floorEntry(dataId);
+		return range != null && range.getValue() >= dataId;
+	}
+
+	/**
+	 * Records that all data objects in a range of data ids have been processed.
+	 * @param from  first data id of the range
+	 * @param to    last data id of the range (inclusive)
+	 */
+	public synchronized void markDone(long from, long to) {
+		add(from, to);
+		dirty = true;
+	}
+
+	/**
+	 * @param dataIds  enumerated data ids in ascending order
+	 * @return the data ids that have not been processed yet
+	 */
+	public PrimitiveIterator.OfLong skipDone(PrimitiveIterator.OfLong dataIds) {
+		return new PrimitiveIterator.OfLong() {
+			private boolean available = false;
+			private long next;
+
+			@Override
+			public boolean hasNext() {
+				while (!available && dataIds.hasNext()) {
+					next = dataIds.nextLong();
+					available = !isDone(next);
+				}
+				return available;
+			}
+
+			@Override
+			public long nextLong() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				available = false;
+				return next;
+			}
+		};
+	}
+
+	/**
+	 * Starts saving the checkpoint periodically in the background.
+	 */
+	public synchronized void startWriter() {
+		if (writer != null) return;
+		writer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Checkpoint");
+			t.setDaemon(true);
+			return t;
+		});
+		writer.scheduleWithFixedDelay(() -> {
+			try {
+				save();
+			} catch (IOException e) {
+				Log.error("Unable to save checkpoint " + path + ": " + e.getMessage());
+			}
+		}, SAVE_INTERVAL_SECONDS, SAVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the background writer and saves the final checkpoint.
+	 */
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.shutdown();
+			writer = null;
+		}
+		save();
+	}
+
+	/**
+	 * Writes the checkpoint to a temporary file that replaces the checkpoint file when complete,
+	 * so that an interruption never leaves a partial checkpoint behind.
+	 */
+	public synchronized void save() throws IOException {
+		if (!dirty) return;
+		Path target = Paths.get(path);
+		Path temp = Paths.get(path + ".tmp");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(temp.toFile()));
+		try {
+			bw.write(HEADER + "\n" + runId + "\n");
+			for (Map.Entry<Long,Long> range : done.entrySet()) {
+				bw.write(range.getKey() + " " + range.getValue() + "\n");
+			}
+		} finally {
+			bw.close();
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		dirty = false;
+	}
+
+	private void add(long from, long to) {
+		// merge with a preceding range that overlaps or touches
+		Map.Entry<Long,Long> lower = done.floorEntry(from);
+		if (lower != null && lower.getValue() >= from - 1) {
+			from = lower.getKey();
+			to = Math.max(to, lower.getValue());
+		}
+		// absorb following ranges that overlap or touch
+		Map.Entry<Long,Long> higher = done.ceilingEntry(from);
+		while (higher != null && higher.getKey() <= to + 1) {
+			to = Math.max(to, higher.getValue());
+			done.remove(higher.getKey());
+			higher = done.ceilingEntry(from);
+		}
+		done.put(from, to);
+	}
+
+	public synchronized String toString() {
+		return "Checkpoint{" + path + ", " + done.size() + " ranges}";
+	}
+
+}
@@ -0,0 +1,244 @@
+package nl.tsmeele.irelocate;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import nl.tsmeele.log.Log;
+
+/**
+ * Verifies the checksums of newly created destination replicas in the background, so that
+ * replication does not wait for the checksum calculation.
+ * The verification has its own threads, iRODS sessions and rate limit. The checksum of the
+ * destination replica is calculated and registered, and compared with the checksum registered
+ * for the source replica, if any.
+ * When the verification cannot keep up, replicas that do not fit in the queue are logged as not
+ * verified instead of slowing down the replication.
+ * In move mode the source replicas are trimmed right after the replication, so there the processing
+ * threads verify the new replica themselves, before the trim, and the verifier has no threads.
+ */
+public class ChecksumVerifier {
+	static final int QUEUE_CAPACITY = 10000;
+	private static final long POLL_INTERVAL_MILLIS = 100L;
+	private RelocateContext ctx;
+	private SessionPool pool = null;
+	private Throttle throttle = null;
+	private BlockingQueue<Job> queue = new ArrayBlockingQueue<Job>(QUEUE_CAPACITY);
+	private List<Thread> threads = new ArrayList<Thread>();
+	private volatile boolean finishing = false;
+
+	private static class Job {
+		final long dataId;
+		final Replica source;
+		// new replica on the destination, null if it still has to be looked up
+		final Replica destination;
+
+		Job(long dataId, Replica source, Replica destination) {
+			this.dataId = dataId;
+			this.source = source;
+			this.destination = destination;
+		}
+	}
+
+	/**
+	 * @param ctx           run context
+	 * @param threads       number of verification threads, each uses its own iRODS session, 0 if the
+	 *                      replicas are only verified by verifyNow
+	 * @param opsPerSecond  maximum number of checksum calculations per second, 0 for no limit
+	 */
+	public ChecksumVerifier(RelocateContext ctx, int threads, long opsPerSecond) {
+		this.ctx = ctx;
+		if (threads > 0) {
+			pool = new SessionPool(ctx, threads);
+		}
+		if (opsPerSecond > 0L) {
+			throttle = new Throttle(0L, opsPerSecond, null, 0L, 0L);
+		}
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(this::verifyLoop, "ChecksumVerifier-" + i);
+			this.threads.add(t);
+		}
+	}
+
+	public void start() {
+		if (pool == null) return;
+		pool.preAuthenticate(threads.size());
+		for (Thread t : threads) {
+			t.start();
+		}
+	}
+
+	/**
+	 * Queues the destination replica of a data object for verification.
+	 * @param dataId  reference to the data object
+	 * @param source  source replica of the replication
+	 */
+	public void submit(long dataId, Replica source) throws IOException {
+		if (!queue.offer(new Job(dataId, source, null))) {
+			ctx.stats.checksumSkipped.increment();
+			ctx.log.logError(dataId, source.size(), 0L, source.path, "Checksum not verified, verification queue is full");
+		}
+	}
+
+	/**
+	 * Verifies the destination replica of a data object in the calling thread, before the source
+	 * replicas are trimmed. If the source replica has no registered checksum, its checksum is
+	 * calculated as well, so that a destination replica is never accepted on its own checksum.
+	 * @param hirods  authenticated iRODS session of the caller
+	 * @param dataId  reference to the data object
+	 * @param source       source replica of the replication
+	 * @param destination  new replica on the destination resource
+	 * @return true if the checksum of the destination replica has been verified
+	 */
+	public boolean verifyNow(IrodsSession hirods, long dataId, Replica source, Replica destination) throws IOException {
+		if (throttle != null) {
+			try {
+				throttle.operation();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the checksum rate limit");
+			}
+		}
+		return verify(hirods, new Job(dataId, source, destination), true);
+	}
+
+	/**
+	 * @return number of replicas waiting for verification
+	 */
+	public int pending() {
+		return queue.size();
+	}
+
+	/**
+	 * Verifies the remaining replicas and stops the threads.
+	 */
+	public void finish() {
+		finishing = true;
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	private void verifyLoop() {
+		IrodsSession hirods = null;
+		int count = 0;
+		try {
+			while (true) {
+				Job job = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				if (job == null) {
+					if (finishing) break;
+					continue;
+				}
+				if (hirods == null) {
+					hirods = pool.borrow();
+					count = 0;
+					if (hirods == null) {
+						// pool closed
+						break;
+					}
+				}
+				if (throttle != null) {
+					throttle.operation();
+				}
+				try {
+					verify(hirods, job, false);
+					count++;
+				} catch (IOException e) {
+					Log.error("Checksum verification of " + job.source.path + " failed: " + e.getMessage());
+					ctx.stats.checksumError.increment();
+					try {
+						ctx.log.logError(job.dataId, job.source.size(), 0L, job.source.path,
+								"Checksum verification failed: " + e.getMessage());
+					} catch (IOException logError) {
+						Log.error(logError.getMessage());
+					}
+					pool.invalidate(hirods);
+					hirods = null;
+				}
+			}
+		} catch (InterruptedException e) {
+			// stop verifying
+		}
+		if (hirods != null) {
+			pool.release(hirods, count);
+		}
+	}
+
+	/**
+	 * @param sourceRequired  calculate the checksum of the source replica if none is registered
+	 * @return true if the checksum has been verified, otherwise the error has been logged
+	 */
+	private boolean verify(IrodsSession hirods, Job job, boolean sourceRequired) throws IOException {
+		Replica source = job.source;
+		Replica destination = job.destination != null ? job.destination : findDestination(hirods, job.dataId);
+		if (destination == null) {
+			Log.info("ERROR, checksum not verified, no replica at destination: " + source.path);
+			ctx.stats.checksumError.increment();
+			ctx.log.logError(job.dataId, source.size(), 0L, source.path, "Checksum not verified, no good replica found at destination");
+			return false;
+		}
+		long start = System.nanoTime();
+		String checksum = hirods.checksum(destination);
+		long nanos = System.nanoTime() - start;
+		ctx.stats.checksum.record(nanos);
+		if (hirods.error() || checksum == null) {
+			Log.info("ERROR, checksum failed (" + hirods.intInfo() + "): " + source.path);
+			ctx.stats.checksumError.increment();
+			ctx.log.logError(job.dataId, source.size(), nanos, source.path, "Checksum failed. iRODS error = " + hirods.intInfo());
+			return false;
+		}
+		String sourceChecksum = source.dataChecksum;
+		if (sourceRequired && (sourceChecksum == null || sourceChecksum.isEmpty())) {
+			start = System.nanoTime();
+			sourceChecksum = hirods.checksum(source);
+			long sourceNanos = System.nanoTime() - start;
+			ctx.stats.checksum.record(sourceNanos);
+			nanos += sourceNanos;
+			if (hirods.error() || sourceChecksum == null) {
+				Log.info("ERROR, checksum of source replica failed (" + hirods.intInfo() + "): " + source.path);
+				ctx.stats.checksumError.increment();
+				ctx.log.logError(job.dataId, source.size(), nanos, source.path,
+						"Checksum of source replica on " + source.dataRescName + " failed. iRODS error = " + hirods.intInfo());
+				return false;
+			}
+		}
+		if (sourceChecksum != null && !sourceChecksum.isEmpty() && !sourceChecksum.equals(checksum)) {
+			Log.info("ERROR, checksum mismatch: " + source.path);
+			ctx.stats.checksumError.increment();
+			ctx.log.logError(job.dataId, source.size(), nanos, source.path,
+					"Checksum mismatch, source " + sourceChecksum + " destination " + checksum);
+			return false;
+		}
+		Log.info("CHECKSUM OK: " + source.path);
+		ctx.stats.verified.increment();
+		ctx.log.logVerified(job.dataId, source.size(), nanos, source.path, destination.dataRescName);
+		return true;
+	}
+
+	/**
+	 * @return the good replica on the destination resource with the highest replica number, which is the
+	 *  most recently created one, or null if there is none
+	 */
+	private Replica findDestination(IrodsSession hirods, long dataId) throws IOException {
+		Replica newest = null;
+		for (Replica r : ObjectActions.lookup(ctx, hirods, new long[] { dataId }, 1).get(0)) {
+			if (r.isGood() && (ctx.decisionEngine.roleOf(r.dataRescName) & DecisionEngine.DESTINATION) != 0 &&
+					(newest == null || Integer.parseInt(r.dataReplNum) > Integer.parseInt(newest.dataReplNum))) {
+				newest = r;
+			}
+		}
+		return newest;
+	}
+
+}
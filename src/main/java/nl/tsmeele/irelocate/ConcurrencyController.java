@@ -0,0 +1,194 @@
+package nl.tsmeele.irelocate;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nl.tsmeele.log.Log;
+
+/**
+ * Limits the number of processing threads that are active at the same time, and adapts
+ * the limit to the observed behavior of the iRODS server (additive increase, multiplicative decrease):
+ *   - the limit decreases by a factor when the rate of failed iRODS operations rises or the server
+ *     responds slower than it did recently
+ *   - otherwise the limit grows by one thread per interval, while that still improves the throughput
+ * The limit never exceeds the number of threads that has been started.
+ * Waiting threads wait on a lock condition rather than a monitor, so that virtual threads unmount while they wait.
+ */
+public class ConcurrencyController {
+	static final long INTERVAL_SECONDS = 10L;
+	static final int INITIAL_LIMIT = 2;
+	static final double DECREASE_FACTOR = 0.75;
+	// congestion is signalled by a failure rate or an average latency per looked up data object or checked
+	// data file (relative to the best of the recent intervals) above these
+	static final double MAX_ERROR_RATE = 0.05;
+	static final double MAX_LATENCY_FACTOR = 2.0;
+	// number of intervals that the best latency is taken from, so that it follows a lasting change of e.g. the data
+	static final int LATENCY_WINDOW = 30;
+	// an increase is considered useless if the throughput does not improve by at least this fraction
+	static final double MIN_IMPROVEMENT = 0.05;
+
+	private RelocateStats stats;
+	private int maxLimit;
+	private int limit;
+	private int active = 0;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition allowed = lock.newCondition();
+	private ScheduledExecutorService timer = null;
+
+	// counters at the previous sample
+	private long lastNanos, lastObjects, lastBytes, lastFailures, lastItems, lastRpcNanos;
+	// throughput of the previous interval, in bytes/s if it replicated any bytes (otherwise 0) and in objects/s
+	private double lastByteRate = 0.0;
+	private double lastObjectRate = 0.0;
+	private boolean increased = false;
+	// latency of the recent intervals, oldest first
+	private ArrayDeque<Double> latencies = new ArrayDeque<Double>();
+
+	/**
+	 * @param stats     run statistics that provide the measurements
+	 * @param maxLimit  maximum number of active threads
+	 */
+	public ConcurrencyController(RelocateStats stats, int maxLimit) {
+		this.stats = stats;
+		this.maxLimit = Math.max(1, maxLimit);
+		this.limit = Math.min(INITIAL_LIMIT, this.maxLimit);
+	}
+
+	/**
+	 * Waits until the thread is allowed to process, to be followed by a call to release.
+	 */
+	public void acquire() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (active >= limit) {
+				allowed.await();
+			}
+			active++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void release() {
+		lock.lock();
+		try {
+			active--;
+			allowed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getLimit() {
+		lock.lock();
+		try {
+			return limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts adjusting the limit periodically in the background.
+	 */
+	public synchronized void start() {
+		if (timer != null) return;
+		sample();
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ConcurrencyController");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleWithFixedDelay(this::adjust, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	private void sample() {
+		lastNanos = System.nanoTime();
+		lastObjects = stats.objects.sum();
+		lastBytes = stats.bytes.sum();
+		lastFailures = stats.failures.sum();
+		lastItems = stats.lookupItems.sum();
+		lastRpcNanos = stats.getReplicas.sumNanos() + stats.datafileStatus.sumNanos();
+	}
+
+	private void adjust() {
+		lock.lock();
+		try {
+			adjustLocked();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void adjustLocked() {
+		long nanos = System.nanoTime() - lastNanos;
+		long objects = stats.objects.sum() - lastObjects;
+		long bytes = stats.bytes.sum() - lastBytes;
+		long failures = stats.failures.sum() - lastFailures;
+		long items = stats.lookupItems.sum() - lastItems;
+		long rpcNanos = stats.getReplicas.sumNanos() + stats.datafileStatus.sumNanos() - lastRpcNanos;
+		sample();
+		if (nanos <= 0L || objects == 0L && items == 0L) {
+			// nothing measured, e.g. while waiting for the enumeration
+			return;
+		}
+		double seconds = nanos / 1e9;
+		// transfers dominate the throughput if there are any, otherwise the number of objects,
+		// an interval is only compared with the previous one in the same unit
+		double byteRate = bytes / seconds;
+		double objectRate = objects / seconds;
+		boolean improved = byteRate > 0.0 && lastByteRate > 0.0 ?
+				byteRate >= lastByteRate * (1.0 + MIN_IMPROVEMENT) : objectRate >= lastObjectRate * (1.0 + MIN_IMPROVEMENT);
+		double errorRate = objects == 0L ? 0.0 : (double) failures / objects;
+		// per data object or data file, queries and checks of larger batches take longer
+		double latency = items == 0L ? 0.0 : rpcNanos / 1e6 / items;
+		double bestLatency = Double.MAX_VALUE;
+		if (items > 0L) {
+			if (latencies.size() >= LATENCY_WINDOW) {
+				latencies.removeFirst();
+			}
+			latencies.addLast(latency);
+			for (double l : latencies) {
+				bestLatency = Math.min(bestLatency, l);
+			}
+		}
+
+		int previous = limit;
+		if (errorRate > MAX_ERROR_RATE || items > 0L && latency > bestLatency * MAX_LATENCY_FACTOR) {
+			// back off, the server is struggling
+			limit = Math.max(1, (int) (limit * DECREASE_FACTOR));
+			increased = false;
+		} else if (increased && !improved) {
+			// the last increase did not help, keep the limit for now
+			increased = false;
+		} else if (limit < maxLimit && active >= limit) {
+			// all allowed threads are busy, try one more
+			limit++;
+			increased = true;
+		} else {
+			increased = false;
+		}
+		lastByteRate = byteRate;
+		lastObjectRate = objectRate;
+		if (limit != previous) {
+			System.out.println(String.format("Adaptive concurrency: %d -> %d threads " +
+					"(%.1f objects/s, %.1f MB/s, query latency %.2f ms per object, failures %.1f%%)",
+					previous, limit, objectRate, byteRate / 1e6, latency, errorRate * 100.0));
+			allowed.signalAll();
+		} else {
+			Log.debug("Adaptive concurrency: keeping " + limit + " threads");
+		}
+	}
+
+}
@@ -0,0 +1,174 @@
+package nl.tsmeele.irelocate;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nl.tsmeele.log.Log;
+
+/**
+ * Enumerates the data objects of a range of data ids and feeds them to the work queue.
+ * Multiple enumerators, each using their own session, can feed the queue in parallel.
+ * If requested, the enumeration is merge-joined with the data objects that already have a good
+ * replica at the destination: in replicate mode these are left out (anti-join), in trim mode
+ * only these are processed (semi-join).
+ */
+public class DataObjectEnumerator implements Runnable {
+	// attempts to enumerate a range, each with a new session
+	static final int MAX_ATTEMPTS = 3;
+	private int partition;
+	private RelocateContext ctx;
+	private SessionPool pool;
+	private WorkQueue.Producer producer;
+	private List<Thread> workers;
+	private long startDataId, endDataId;
+	// lowest data id that has not been enumerated yet
+	private long nextDataId;
+	private long count = 0L;
+	// data objects with a good replica at the destination, null if no join is requested
+	private IrodsQuery.DataObjectIterator atDestination = null;
+	private long atDestinationId = -1L;
+	// true while a query of the enumeration has not been read to the end
+	private boolean queryOpen = false;
+
+	/**
+	 * @param partition    sequence number of the range, used in messages
+	 * @param ctx          run context
+	 * @param pool         pool that provides the session used for the enumeration
+	 * @param queue        queue to feed
+	 * @param workers      threads that process the queue, enumeration stops if they have all stopped
+	 * @param startDataId  lowest data id of the range
+	 * @param endDataId    highest data id of the range, Long.MAX_VALUE if unbounded
+	 */
+	DataObjectEnumerator(int partition, RelocateContext ctx, SessionPool pool, WorkQueue queue, List<Thread> workers,
+			long startDataId, long endDataId) {
+		this.partition = partition;
+		this.ctx = ctx;
+		this.pool = pool;
+		this.workers = workers;
+		this.startDataId = startDataId;
+		this.endDataId = endDataId;
+		this.nextDataId = startDataId;
+		// register now, so that the queue is not considered exhausted before this enumerator has started
+		this.producer = queue.newProducer(startDataId);
+	}
+
+	@Override
+	public void run() {
+		Log.debug("START DataObjectEnumerator #" + partition + " for DATA_ID range " + startDataId + ".." +
+				(endDataId == Long.MAX_VALUE ? "" : endDataId));
+		try {
+			// after an IOException the enumeration continues with a new session where it stopped
+			for (int attempt = 1; ; attempt++) {
+				IrodsSession hirods = pool.borrow();
+				if (hirods == null) {
+					Log.error("Unable to obtain an iRODS session for enumeration of DATA_ID range " + nextDataId + ".." + endDataId);
+					ctx.stats.incomplete.increment();
+					return;
+				}
+				try {
+					if (enumerate(hirods)) {
+						Log.debug("Enumerator #" + partition + " found " + count + " matching data objects");
+					} else {
+						ctx.stats.incomplete.increment();
+					}
+					return;
+				} catch (IOException e) {
+					pool.invalidate(hirods);
+					hirods = null;
+					if (attempt >= MAX_ATTEMPTS) {
+						Log.error("IOException while enumerating data objects from DATA_ID = " + nextDataId + ", giving up after " +
+								attempt + " attempts: " + e.getMessage());
+						ctx.stats.incomplete.increment();
+						return;
+					}
+					Log.warning("IOException while enumerating data objects, continuing from DATA_ID = " + nextDataId + ": " +
+								e.getMessage());
+				} finally {
+					if (hirods != null) {
+						// an unfinished query keeps a statement open on the server, which would break the
+						// next query on the session, the session is therefore closed rather than reused
+						if (queryOpen) {
+							pool.retire(hirods);
+						} else {
+							pool.release(hirods, 0);
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.error("Enumeration of data objects interrupted at DATA_ID = " + nextDataId);
+			ctx.stats.incomplete.increment();
+		} finally {
+			producer.close();
+		}
+	}
+
+	/**
+	 * Enumerates the remainder of the range and feeds the data objects to the queue.
+	 * @param hirods  session used for the queries
+	 * @return false if the enumeration was aborted because all processing threads have stopped
+	 */
+	private boolean enumerate(IrodsSession hirods) throws IOException, InterruptedException {
+		queryOpen = true;
+		IrodsQuery.DataObjectIterator objs = IrodsQuery.dataObjectsOnResources(hirods, ctx.sourceList, nextDataId, endDataId);
+		if (ctx.joinResources != null) {
+			atDestination = IrodsQuery.dataObjectsWithGoodReplica(hirods, ctx.joinResources, nextDataId, endDataId);
+			atDestinationId = -1L;
+		}
+		while (objs.hasNext()) {
+			long dataId = objs.nextLong();
+			if (ctx.checkpoint.isDone(dataId)) {
+				nextDataId = dataId + 1;
+				continue;
+			}
+			if (atDestination != null && isAtDestination(dataId) != ctx.trim) {
+				ctx.stats.joined.increment();
+				nextDataId = dataId + 1;
+				continue;
+			}
+			while (!producer.offer(dataId, objs.dataSize(), 1, TimeUnit.SECONDS)) {
+				if (!isAnyAlive(workers)) {
+					Log.error("All processing threads have stopped, aborting enumeration at DATA_ID = " + dataId);
+					return false;
+				}
+			}
+			count++;
+			nextDataId = dataId + 1;
+		}
+		// the stream of data objects at the destination usually has rows left when the enumeration ends
+		queryOpen = atDestination != null && atDestinationId != Long.MAX_VALUE;
+		return true;
+	}
+
+	/**
+	 * Advances the stream of data objects with a good replica at the destination, both streams are
+	 * in ascending order of data id.
+	 * @return true if the data object has a good replica at the destination
+	 */
+	private boolean isAtDestination(long dataId) {
+		while (atDestinationId < dataId) {
+			if (!atDestination.hasNext()) {
+				// read to the end
+				atDestinationId = Long.MAX_VALUE;
+				break;
+			}
+			atDestinationId = atDestination.nextLong();
+		}
+		return atDestinationId == dataId;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	private static boolean isAnyAlive(List<Thread> threads) {
+		for (Thread t : threads) {
+			if (t.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
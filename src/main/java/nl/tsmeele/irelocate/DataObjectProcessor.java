@@ -1,34 +1,37 @@
 package nl.tsmeele.irelocate;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Queue;
 
 import nl.tsmeele.log.Log;
-import nl.tsmeele.myrods.high.Hirods;
-import nl.tsmeele.myrods.high.IrodsUser;
 import nl.tsmeele.myrods.plumbing.MyRodsException;
 
+/**
+ * Processes blocks of data objects from the work queue, executing all steps for a data object
+ * (lookup, verification and action) in one thread.
+ */
 public class DataObjectProcessor implements Runnable {
-	static final int MAX_DATA_OBJECTS_PER_SESSION = 5000;
 	static final int DATA_OBJECTS_PER_PROGRESS_REPORT = 5000;
+	static final int MAX_ATTEMPTS_PER_BATCH = 2;
 	private int threadId;
 	private RelocateContext ctx = null;
-	private Queue<String> queue = null;
+	private WorkQueue queue = null;
+	private SessionPool pool = null;
 	private boolean stop = false;
 	private long count;
-	private long doneOk;
-	private long doneReplicated;
-	private long doneTrimmed;
-	private long doneError;
-	private long doneSkipped;
-	private Hirods hirods = null;
+	// number of data objects of the current batch that have been processed, and which ones
+	private int batchDone;
+	private boolean[] objectDone = new boolean[0];
+	// true if data objects of the current batch failed or have been given up on, its range is then not complete
+	private boolean batchFailed;
+	private IrodsSession hirods = null;
 	
-	DataObjectProcessor(int threadId, RelocateContext ctx, Queue<String> queue) {
+	DataObjectProcessor(int threadId, RelocateContext ctx, WorkQueue queue, SessionPool pool) {
 		this.threadId = threadId;
 		this.ctx = ctx;
 		this.queue = queue;
+		this.pool = pool;
 	}
 
 	public void stop() {
@@ -38,213 +41,162 @@ public class DataObjectProcessor implements Runnable {
 	@Override
 	public void run() {
 		Log.debug("START DataObjectProcessor #" + threadId);
-		while (process(queue.poll()) && !stop) {
-			count++;
-		}
-		if (ctx.trim) {
-			System.out.println("DataObjectProcessor #" + threadId + " is done. Data objects subtotal: " + count + "  okay: " + doneOk +
-				"  trimmed-okay: " + doneTrimmed + "  error: " + doneError + "  skipped: " + doneSkipped);
-		} else {
-			System.out.println("DataObjectProcessor #" + threadId + " is done. Data objects subtotal: " + count + "  okay: " + doneOk +
-				"  replicated-okay: " + doneReplicated + "  error: " + doneError + "  skipped: " + doneSkipped);
+		WorkQueue.Block batch;
+		while (!stop && acquire()) {
+			batch = nextBatch();
+			boolean success = batch != null && processBatch(batch);
+			if (success && !batchFailed) {
+				if (batch.range.complete()) {
+					ctx.checkpoint.markDone(batch.range.from, batch.range.to);
+				}
+			}
+			if (batch != null) {
+				queue.release(batch);
+			}
+			if (ctx.concurrency != null) {
+				ctx.concurrency.release();
+			}
+			if (!success) break;
 		}
-		// clean up any open server session
+		System.out.println("DataObjectProcessor #" + threadId + " is done. Data objects subtotal: " + count);
+	}
+
+	/**
+	 * In adaptive mode, waits until this thread is allowed to process.
+	 * @return false if the wait was interrupted
+	 */
+	private boolean acquire() {
+		if (ctx.concurrency == null) return true;
 		try {
-			if (hirods != null) {
-				hirods.rcDisconnect();
-			}
-		} catch (IOException e) {
+			ctx.concurrency.acquire();
+			return true;
+		} catch (InterruptedException e) {
+			return false;
 		}
 	}
 
 	/**
-	 * @param dataObjId  reference to the data object to process
-	 * @return true if no exception raised during processing
+	 * Claims the next block of data objects from the queue.
+	 * @return block of data ids or null if the queue is exhausted
 	 */
-	private boolean process(String dataObjId) {
-		/* 
-		 * iRODS agents may suffer from memory leaks due to custom rules and/or micro services.
-		 * we reconnect now and then to avoid impact of such potential leaks.
-		 */
+	private WorkQueue.Block nextBatch() {
+		try {
+			return queue.claim();
+		} catch (InterruptedException e) {
+			return null;
+		}
+	}
 		
-		if (dataObjId == null) return false;
-		if (hirods != null && count % MAX_DATA_OBJECTS_PER_SESSION == 0) {
+	/**
+	 * Processes a block of data objects using a session borrowed from the pool.
+	 * Upon an IOException the session is replaced and the remaining objects are retried.
+	 * Objects that still fail are logged as not processed. The batch is then marked as failed, as it is
+	 * when an action fails, so that the checkpoint keeps its range for a resumed run.
+	 * @param batch  references to the data objects to process
+	 * @return false if no session could be obtained
+	 */
+	private boolean processBatch(WorkQueue.Block batch) {
+		// report progress (independent of log level)
+		if (batch.length > 0 &&
+				count / DATA_OBJECTS_PER_PROGRESS_REPORT != (count + batch.length) / DATA_OBJECTS_PER_PROGRESS_REPORT) {
+			System.out.println("Data object processor #" + threadId + " progress: at data object " + batch.ids[0]);
+		}
+
+		batchDone = 0;
+		batchFailed = false;
+		if (objectDone.length < batch.length) {
+			objectDone = new boolean[batch.length];
+		}
+		Arrays.fill(objectDone, 0, batch.length, false);
+		for (int attempt = 1; batchDone < batch.length; attempt++) {
+			hirods = pool.borrow();
+			if (hirods == null) {
+				Log.error("Unable to obtain an iRODS session while processing data objects");
+				return false;
+			}
+			int before = batchDone;
 			try {
-				hirods.rcDisconnect();
+				processObjects(batch);
+				pool.release(hirods, batchDone - before);
 			} catch (IOException e) {
+				pool.invalidate(hirods);
+				if (attempt >= MAX_ATTEMPTS_PER_BATCH) {
+					Log.error("IOException while processing data objects " + batch.ids[0] + ".." +
+							batch.ids[batch.length - 1] + ", skipped " + (batch.length - batchDone) + ": " + e.getMessage());
+					ctx.stats.error.add(batch.length - batchDone);
+					ctx.stats.objects.add(batch.length - batchDone);
+					logSkipped(batch, "Not processed, IOException: " + e.getMessage());
+					count += batch.length - batchDone;
+					batchDone = batch.length;
+					batchFailed = true;
+				} else {
+					Log.warning("IOException while processing data objects, retrying with a new session: " + e.getMessage());
+				}
 			} finally {
 				hirods = null;
 			}
 		}
+		return true;
+	}
 		
-		// make sure we are logged in
-		if (hirods == null) {
-			IrodsUser user = new IrodsUser(ctx.userName, ctx.zone);
-			hirods = RelocateMain.rodsAdminLogin(ctx.host, ctx.port, user, ctx.password, ctx.authPam);
-			if (hirods == null) {
-				Log.error("Unable to reconnect while processing data objects");
-				return false;
-			} else {
-				Log.debug("reconnected");
-			}
-		}
-		
-		
-		// report progress (independent of log level)
-		if ( count != 0 && count % DATA_OBJECTS_PER_PROGRESS_REPORT == 0) {
-			System.out.println("Data object processor #" + threadId + " progress: at data object " + dataObjId);
-		}
-
-		/* assert all replicas that belong to data_object
-		 *   - classify the replicas into perfect, good, stale, bad
-		 *  
-		 * execute either replicate or trim task, based on command line arguments
-		 *   - replicate ONLY IF 
-		 *     1) a perfect replica exist  AND
-		 *     2) the destination resource lacks a perfect replica
-		 *     
-		 *   - trim ONLY IF:
-		 *     1) a perfect replica exists on (or within of hierarchy of) the destination resource AND
-		 *     2) one or more replicas exist on source resources (select these to trim)
-		*/
+	/**
+	 * Writes a log line for each data object of the batch that has not been processed.
+	 */
+	private void logSkipped(WorkQueue.Block batch, String message) {
 		try {
-			// analyze replicas of data object
-			List<Replica> replicas = IrodsQuery.getReplicas(hirods, dataObjId);
-			Replica localPerfect = null;
-			Replica perfect = null;
-			Replica goodOrStale = null;
-			Replica destPerfect = null;
-			boolean intermediate = false;
-			Resource destResc = ctx.rescList.get(ctx.destinationResource);
-			List<Replica> onSourceResource = new ArrayList<Replica>();
-			for (Replica r : replicas) {
-				// does replica classify as perfect?
-				if (r.isGood() && r.retrieveDatafileStatus(hirods) == 1) {
-					// make a note we have at least one perfect replica
-					perfect = r;
-					// lookup the resource and make a note of other attributes
-					Resource resc = ctx.rescList.get(r.dataRescName);
-					if (resc != null && resc.isLocal) {
-						localPerfect = r;
-					}
-					if (resc != null && ctx.rescList.isInTree(destResc, resc)) {
-						destPerfect = r;
-					}
-					// optionally consider leaf resources on same host as destination sufficient
-					if (ctx.nearby && destPerfect == null && resc != null 
-							&& ctx.otherDestinationResources.contains(resc)) {
-						destPerfect = r;
-					}
-				}
-				// is replica at rest?
-				if (r.isGood() || r.isStale()) {
-					// at rest: see if it is located on a source resource
-					goodOrStale = r;
-					if (ctx.sourceList.contains(r.dataRescName)) {
-						onSourceResource.add(r);
-					}
-				} else {
-					intermediate = true;
-				}
-			}
-			
-			// decide on an action based on the analysis of all replicas of this object
-			
-			// ignore data object if none of the replicas are currently at rest 
-			if (replicas.isEmpty() || (goodOrStale == null && intermediate)) {
-				Log.debug("Skipping intermediate object " + dataObjId);
-				doneSkipped++;
-				return true;
-			}
-			
-			String path = replicas.get(0).path;
-			// report error in case data object lacks a perfect replica
-			if (perfect == null) {
-				ctx.log.logError(path, "Object lacks a perfect replica");
-				if (ctx.verbose) {
-					Log.info("ERROR, lacks perfect replica: " + path);
+			for (int i = 0; i < batch.length; i++) {
+				if (!objectDone[i]) {
+					// the path is not known, the text format identifies the object by its data id
+					ctx.log.logError(batch.ids[i], 0L, 0L, "DATA_ID=" + batch.ids[i], message);
 				}
-				doneError++;
-				return true;
 			}
-			
-			// general preconditions have been met, now trim or replicate
-			
-			if (ctx.trim) {
-				// TRIM action requested
-				if (destPerfect == null) {
-					// unable to trim because destination does not yet have a perfect replica
-					Log.debug("Object lacks perfect replica at destination: " + path);
-					doneError++;
-					return true;
-				}
-				if (onSourceResource.isEmpty()) {
-					// no replicas to trim
-					Log.info("OK: " + path);
-					doneOk++;
-					return true;
-				}
-				trimAction(onSourceResource, path);
-				return true;
-			} else {
-				// REPLICATE action requested
-				if (destPerfect != null) {
-					// perfect replica already exists on destination, notify no action needed
-					Log.info("OK: " + path);
-					doneOk++;
-					return true;
-				}
-				// we need to replicate, prefer to source from a local copy (performance!) 
-				if (localPerfect != null) {
-					perfect = localPerfect;
-				}
-				replicateAction(perfect, path);
-				return true;
-			}
-		
 		} catch (IOException e) {
-			Log.error("IOException while fetching replicas: " + e.getMessage());
-			return false;
-		}
-	}
-	
-	private void replicateAction(Replica perfect, String path) throws MyRodsException, IOException {
-		Log.debug("...replicating: " + path);
-		boolean replicated = perfect.replicate(hirods, ctx.destinationResource, false);
-		if (replicated) {
-			Log.info("REPLICATED OK: " + path);
-			ctx.log.logDone(path);
-			doneReplicated++;
-		} else {
-			ctx.log.logError(path, "Replication failed. iRODS error = " + hirods.intInfo);
-			Log.info("ERROR, replication failed (" + hirods.intInfo + "): " + path);
-			doneError++;
+			Log.error("Unable to write to the log: " + e.getMessage());
 		}
 	}
-	
-	
-	private void trimAction(List<Replica> onSourceResource, String path) throws MyRodsException, IOException {
-		Log.debug("...trimming: " + path);
-		ArrayList<String> trimErrors = new ArrayList<String>();
-		for (Replica r : onSourceResource) {
-			if (r.trim(hirods)) {
-				Log.info("TRIMMED ON " + r.dataRescName + ": " + path);
-				ctx.log.logTrimmed(path, r.dataRescName);
-			} else {
-				Log.info("ERROR, trim failed (" + hirods.intInfo + ") for resource: " + r.dataRescName  + "  path: " + path);
-				trimErrors.add(r.dataRescName);
+
+	/**
+	 * Processes the data objects of a block that have not been processed yet.
+	 * Objects whose action does not have to wait for a busy storage host are processed first.
+	 * @param batch  references to the data objects to process, in ascending order
+	 */
+	private void processObjects(WorkQueue.Block batch) throws MyRodsException, IOException {
+		// select the remaining objects, keeping them in ascending order
+		int length = batch.length - batchDone;
+		int[] index = new int[length];
+		long[] ids = new long[length];
+		for (int i = 0, j = 0; i < batch.length; i++) {
+			if (!objectDone[i]) {
+				index[j] = i;
+				ids[j++] = batch.ids[i];
 			}
 		}
-		if (!trimErrors.isEmpty()) {
-			ctx.log.logError(path, "Unable to trim replica on resource(s): " + trimErrors.toString());
-			doneError++;
-		} else {
-			doneTrimmed++;
+		List<List<Replica>> replicasPerObject = ObjectActions.lookupAndVerify(ctx, hirods, ids, length);
+		DecisionEngine.Decision[] decisions = new DecisionEngine.Decision[length];
+		for (int i = 0; i < length; i++) {
+			decisions[i] = ctx.decisionEngine.decide(replicasPerObject.get(i));
+		}
+		boolean[] handled = new boolean[length];
+		for (int remaining = length; remaining > 0; remaining--) {
+			int next = -1;
+			for (int i = 0; i < length; i++) {
+				if (handled[i]) continue;
+				if (next < 0) {
+					next = i;
+				}
+				if (ctx.hostLimiter == null || ctx.hostLimiter.isAvailable(decisions[i])) {
+					next = i;
+					break;
+				}
+			}
+			if (!ObjectActions.execute(ctx, hirods, ids[next], replicasPerObject.get(next), decisions[next])) {
+				batchFailed = true;
+			}
+			handled[next] = true;
+			objectDone[index[next]] = true;
+			count++;
+			batchDone++;
 		}
 	}
 	
-	
-	
-	
-	
 }
@@ -0,0 +1,176 @@
+package nl.tsmeele.irelocate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which action is needed for a data object, given its replicas and the results
+ * of the data file checks. The role of each resource is determined once per run, so that
+ * a decision does not require any iRODS calls, list scans or string comparisons.
+ */
+public class DecisionEngine {
+	// resource roles, a resource can have multiple roles
+	public static final int OTHER = 0;
+	public static final int SOURCE = 1;
+	public static final int DESTINATION = 2;
+	public static final int NEARBY = 4;
+	public static final int LOCAL = 8;
+
+	public enum Action {
+		SKIP,					// none of the replicas is at rest
+		ERROR_NO_PERFECT,		// data object lacks a perfect replica
+		ERROR_NO_DESTINATION,	// trim requested, yet destination lacks a perfect replica
+		OK,						// no action needed
+		REPLICATE,				// replicate the source replica to the destination
+		TRIM,					// trim the replicas on source resources
+		MOVE					// replicate to the destination, then trim the replicas on source resources
+	}
+
+	public static class Decision {
+		public final Action action;
+		// preferred source replica to replicate, and all perfect replicas that can serve as source
+		public final Replica source;
+		public final List<Replica> candidates;
+		public final List<Replica> trim;
+
+		private Decision(Action action, Replica source, List<Replica> candidates, List<Replica> trim) {
+			this.action = action;
+			this.source = source;
+			this.candidates = candidates;
+			this.trim = trim;
+		}
+	}
+
+	private static final Decision SKIP = new Decision(Action.SKIP, null, null, null);
+	private static final Decision ERROR_NO_PERFECT = new Decision(Action.ERROR_NO_PERFECT, null, null, null);
+	private static final Decision ERROR_NO_DESTINATION = new Decision(Action.ERROR_NO_DESTINATION, null, null, null);
+	private static final Decision OK = new Decision(Action.OK, null, null, null);
+
+	private final Map<String,Integer> roles = new HashMap<String,Integer>();
+	private final boolean trim;
+	private final boolean move;
+
+	/**
+	 * @param rescList      resources of the data grid
+	 * @param destResc      destination (root) resource
+	 * @param sources       names of the source (leaf) resources
+	 * @param nearby        resources that are considered sufficient as destination as well, may be null
+	 * @param trim          true if trim mode has been requested, otherwise replicate
+	 * @param move          true if move mode has been requested: replicate and trim in the same visit
+	 */
+	public DecisionEngine(IrodsResources rescList, Resource destResc, Collection<String> sources,
+			Collection<Resource> nearby, boolean trim, boolean move) {
+		this.trim = trim;
+		this.move = move;
+		Set<String> sourceSet = new HashSet<String>(sources);
+		Set<Resource> nearbySet = nearby == null ? Collections.emptySet() : new HashSet<Resource>(nearby);
+		for (Resource resc : rescList.resources.values()) {
+			int role = OTHER;
+			if (sourceSet.contains(resc.name)) role |= SOURCE;
+			if (rescList.isInTree(destResc, resc)) role |= DESTINATION;
+			if (nearbySet.contains(resc)) role |= NEARBY;
+			if (resc.isLocal) role |= LOCAL;
+			roles.put(resc.name, role);
+		}
+		// source resources that are not known in the grid still count as source
+		for (String name : sourceSet) {
+			roles.merge(name, SOURCE, (a, b) -> a | b);
+		}
+	}
+
+	/**
+	 * @param rescName  name of a resource
+	 * @return roles of the resource, a combination of the role flags
+	 */
+	public int roleOf(String rescName) {
+		Integer role = roles.get(rescName);
+		return role == null ? OTHER : role;
+	}
+
+	/**
+	 * Classifies the replicas into perfect, good, stale, bad and decides on either a replicate
+	 * or trim action, based on the mode of the run:
+	 *   - replicate ONLY IF
+	 *     1) a perfect replica exist  AND
+	 *     2) the destination resource lacks a perfect replica
+	 *   - trim ONLY IF:
+	 *     1) a perfect replica exists on (or within of hierarchy of) the destination resource AND
+	 *     2) one or more replicas exist on source resources (select these to trim)
+	 *   - move: trim if the destination has a perfect replica, otherwise replicate and trim
+	 *     the replicas on source resources once the new replica has been checked
+	 * @param replicas  all replicas of a data object, good replicas that have not been checked (data file
+	 *                  status null) are not considered perfect
+	 * @return action to take for the data object
+	 */
+	public Decision decide(List<Replica> replicas) {
+		Replica localPerfect = null;
+		Replica perfect = null;
+		Replica destPerfect = null;
+		List<Replica> perfects = null;
+		boolean atRest = false;
+		List<Replica> onSourceResource = null;
+		for (Replica r : replicas) {
+			int role = roleOf(r.dataRescName);
+			// does replica classify as perfect?
+			if (r.isGood() && r.datafileStatus != null && r.datafileStatus == 1) {
+				perfect = r;
+				if (perfects == null) {
+					perfects = new ArrayList<Replica>(2);
+				}
+				perfects.add(r);
+				if ((role & LOCAL) != 0) {
+					localPerfect = r;
+				}
+				if ((role & (DESTINATION | NEARBY)) != 0) {
+					destPerfect = r;
+				}
+			}
+			// is replica at rest? see if it is located on a source resource
+			if (r.isGood() || r.isStale()) {
+				atRest = true;
+				if ((role & SOURCE) != 0) {
+					if (onSourceResource == null) {
+						onSourceResource = new ArrayList<Replica>();
+					}
+					onSourceResource.add(r);
+				}
+			}
+		}
+
+		// ignore data object if none of the replicas are currently at rest
+		if (!atRest) {
+			return SKIP;
+		}
+		if (perfect == null) {
+			return ERROR_NO_PERFECT;
+		}
+		if (move && destPerfect != null) {
+			return onSourceResource == null ? OK : new Decision(Action.TRIM, null, null, onSourceResource);
+		}
+		if (trim) {
+			if (destPerfect == null) {
+				return ERROR_NO_DESTINATION;
+			}
+			if (onSourceResource == null) {
+				return OK;
+			}
+			return new Decision(Action.TRIM, null, null, onSourceResource);
+		}
+		if (destPerfect != null) {
+			return OK;
+		}
+		// prefer to source from a local copy (performance!)
+		Replica source = localPerfect != null ? localPerfect : perfect;
+		if (move && onSourceResource != null) {
+			return new Decision(Action.MOVE, source, perfects, onSourceResource);
+		}
+		return new Decision(Action.REPLICATE, source, perfects, null);
+	}
+
+}
@@ -0,0 +1,330 @@
+package nl.tsmeele.irelocate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.api.Columns;
+import nl.tsmeele.myrods.api.DataObjInp;
+import nl.tsmeele.myrods.api.ExecMyRuleInp;
+import nl.tsmeele.myrods.api.GenQueryInp;
+import nl.tsmeele.myrods.api.GenQueryOut;
+import nl.tsmeele.myrods.api.InxIvalPair;
+import nl.tsmeele.myrods.api.InxValPair;
+import nl.tsmeele.myrods.api.KeyValPair;
+import nl.tsmeele.myrods.api.Kw;
+import nl.tsmeele.myrods.api.MsParam;
+import nl.tsmeele.myrods.api.MsParamArray;
+import nl.tsmeele.myrods.api.RHostAddr;
+import nl.tsmeele.myrods.high.Hirods;
+import nl.tsmeele.myrods.irodsStructures.DataPtr;
+import nl.tsmeele.myrods.irodsStructures.DataStruct;
+import nl.tsmeele.myrods.plumbing.MyRodsException;
+
+/**
+ * Session with an iRODS server, carries out the operations of irelocate using Hirods.
+ * Data files are checked with the Yoda microservice msi_stat_vault.
+ */
+public class HirodsSession implements IrodsSession {
+	// separator for the lists passed to the batch stat rule, must not occur in the list items
+	private final static String STAT_LIST_SEPARATOR = "\n";
+	// maximum number of replicas checked per rule execution
+	public final static int MAX_STAT_BATCH = 256;
+	private Hirods hirods;
+
+	public HirodsSession(String host, int port) {
+		hirods = new Hirods(host, port);
+	}
+
+	@Override
+	public boolean nativeLogin(String userName, String zone, String password, String proxyUser, String proxyZone)
+			throws MyRodsException, IOException {
+		return hirods.nativeLogin(userName, zone, password, proxyUser, proxyZone);
+	}
+
+	@Override
+	public boolean pamLogin(String userName, String zone, String password, String proxyUser, String proxyZone)
+			throws MyRodsException, IOException {
+		return hirods.pamLogin(userName, zone, password, proxyUser, proxyZone);
+	}
+
+	@Override
+	public String getUserType(String userName, String zone) throws MyRodsException, IOException {
+		String userType = hirods.getUserType(userName, zone);
+		return hirods.error ? null : userType;
+	}
+
+	@Override
+	public void rcDisconnect() throws MyRodsException, IOException {
+		hirods.rcDisconnect();
+	}
+
+	@Override
+	public boolean isAuthenticated() {
+		return hirods.isAuthenticated();
+	}
+
+	@Override
+	public String getHost() {
+		return hirods.getHost();
+	}
+
+	@Override
+	public boolean error() {
+		return hirods.error;
+	}
+
+	@Override
+	public int intInfo() {
+		return hirods.intInfo;
+	}
+
+	@Override
+	public Iterator<String[]> query(CatalogQuery query) throws MyRodsException, IOException {
+		// SELECT clause
+		InxIvalPair inxIvalPair = new InxIvalPair();
+		for (Map.Entry<Columns,Integer> e : query.selected().entrySet()) {
+			inxIvalPair.put(e.getKey().getId(), e.getValue());
+		}
+		// WHERE clause
+		InxValPair inxValPair = new InxValPair();
+		for (Map.Entry<Columns,String> e : query.conditions().entrySet()) {
+			inxValPair.put(e.getKey().getId(), e.getValue());
+		}
+		GenQueryInp genQueryInp = new GenQueryInp(query.pageSize(), 0, 0, 0, new KeyValPair(), inxIvalPair, inxValPair);
+		return new RowIterator(hirods.genQueryIterator(genQueryInp));
+	}
+
+	/**
+	 * Checks the data files using a single rule execution per MAX_STAT_BATCH replicas.
+	 */
+	@Override
+	public int[] datafileStatus(List<Replica> replicas) throws MyRodsException, IOException {
+		int[] out = new int[replicas.size()];
+		List<Replica> batch = new ArrayList<Replica>();
+		List<Integer> batchIndex = new ArrayList<Integer>();
+		for (int i = 0; i < replicas.size(); i++) {
+			Replica r = replicas.get(i);
+			if (r.dataRescName.contains(STAT_LIST_SEPARATOR) || r.dataPath.contains(STAT_LIST_SEPARATOR)) {
+				// cannot be passed as list item, check this replica on its own
+				out[i] = datafileStatus(r);
+				continue;
+			}
+			batch.add(r);
+			batchIndex.add(i);
+			if (batch.size() == MAX_STAT_BATCH) {
+				int[] status = datafileStatusBatch(batch);
+				for (int j = 0; j < status.length; j++) {
+					out[batchIndex.get(j)] = status[j];
+				}
+				batch.clear();
+				batchIndex.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			int[] status = datafileStatusBatch(batch);
+			for (int j = 0; j < status.length; j++) {
+				out[batchIndex.get(j)] = status[j];
+			}
+		}
+		return out;
+	}
+
+	private int datafileStatus(Replica replica) throws MyRodsException, IOException {
+		// construct rule and its input args
+		RHostAddr rHostAddr = new RHostAddr("", "", 0, 0);
+		MsParam inputVar1 = new MsParam("*rescName", replica.dataRescName);
+		MsParam inputVar2 = new MsParam("*dataPath", replica.dataPath);
+		MsParam inputVar3 = new MsParam("*replicaSize", replica.dataSize);
+		MsParamArray msParamArray = new MsParamArray(0);
+		msParamArray.add(inputVar1);
+		msParamArray.add(inputVar2);
+		msParamArray.add(inputVar3);
+		String outParamDesc = "ruleExecOut";
+		outParamDesc = outParamDesc.concat("%*result");
+		String myRule = "@external rule " +
+			"{" +
+				"*fileType = \"\";" +
+				"*fileSize = \"\";" +
+				"*result = msi_stat_vault(*rescName, *dataPath, *fileType, *fileSize);" +
+				"if (*result < 0 || *fileType != \"FILE\") {" +
+					"*result = -1;" +
+				"} else {" +
+					"if (*fileSize != *replicaSize) {" +
+						"*result = 0;" +
+					"} else {" +
+						"*result = 1;" +
+					"}" +
+				"}" +
+			"}";
+		KeyValPair condInput = new KeyValPair();
+		condInput.put(Kw.INSTANCE_NAME_KW, "irods_rule_engine_plugin-irods_rule_language-instance");
+		ExecMyRuleInp ruleInp = new ExecMyRuleInp(myRule, rHostAddr, condInput, outParamDesc, msParamArray);
+
+		// execute rule and interpret result
+		MsParamArray out = hirods.rcExecMyRule(ruleInp);
+		if (hirods.error || out == null) {
+			return hirods.intInfo;
+		}
+		MsParam param = (MsParam) ((DataPtr)out.get(2)).get();
+		DataStruct d = param.getParamContent();
+		Integer result = d.lookupInt("myInt");
+		// unexpected rule output is treated as a failed check
+		return result == null ? -1 : result;
+	}
+
+	private int[] datafileStatusBatch(List<Replica> replicas) throws MyRodsException, IOException {
+		int[] out = new int[replicas.size()];
+		// construct rule and its input args, each input arg holds a list with an item per replica
+		StringBuilder rescNames = new StringBuilder();
+		StringBuilder dataPaths = new StringBuilder();
+		StringBuilder replicaSizes = new StringBuilder();
+		for (Replica r : replicas) {
+			rescNames.append(r.dataRescName).append(STAT_LIST_SEPARATOR);
+			dataPaths.append(r.dataPath).append(STAT_LIST_SEPARATOR);
+			replicaSizes.append(r.dataSize).append(STAT_LIST_SEPARATOR);
+		}
+		RHostAddr rHostAddr = new RHostAddr("", "", 0, 0);
+		MsParamArray msParamArray = new MsParamArray(0);
+		msParamArray.add(new MsParam("*rescNames", rescNames.toString()));
+		msParamArray.add(new MsParam("*dataPaths", dataPaths.toString()));
+		msParamArray.add(new MsParam("*replicaSizes", replicaSizes.toString()));
+		msParamArray.add(new MsParam("*separator", STAT_LIST_SEPARATOR));
+		String outParamDesc = "ruleExecOut";
+		outParamDesc = outParamDesc.concat("%*result");
+		// errorcode() keeps a failing stat from aborting the checks of the other replicas
+		String myRule = "@external rule " +
+			"{" +
+				"*rescList = split(*rescNames, *separator);" +
+				"*pathList = split(*dataPaths, *separator);" +
+				"*sizeList = split(*replicaSizes, *separator);" +
+				"*result = \"\";" +
+				"for (*i = 0; *i < size(*pathList); *i = *i + 1) {" +
+					"*rescName = elem(*rescList, *i);" +
+					"*dataPath = elem(*pathList, *i);" +
+					"*fileType = \"\";" +
+					"*fileSize = \"\";" +
+					"*status = \"1\";" +
+					"*err = errorcode(msi_stat_vault(*rescName, *dataPath, *fileType, *fileSize));" +
+					"if (*err < 0 || *fileType != \"FILE\") {" +
+						"*status = \"-1\";" +
+					"} else {" +
+						"if (*fileSize != elem(*sizeList, *i)) {" +
+							"*status = \"0\";" +
+						"}" +
+					"}" +
+					"*result = *result ++ *status ++ \",\";" +
+				"}" +
+			"}";
+		KeyValPair condInput = new KeyValPair();
+		condInput.put(Kw.INSTANCE_NAME_KW, "irods_rule_engine_plugin-irods_rule_language-instance");
+		ExecMyRuleInp ruleInp = new ExecMyRuleInp(myRule, rHostAddr, condInput, outParamDesc, msParamArray);
+
+		// execute rule and interpret result
+		MsParamArray ruleOut = hirods.rcExecMyRule(ruleInp);
+		if (hirods.error || ruleOut == null) {
+			Arrays.fill(out, hirods.intInfo);
+			return out;
+		}
+		MsParam param = (MsParam) ((DataPtr)ruleOut.get(2)).get();
+		DataStruct d = param.getParamContent();
+		String[] status = d.lookupString("myStr").split(",");
+		for (int i = 0; i < out.length; i++) {
+			// a missing or unexpected status is treated as a failed check
+			out[i] = -1;
+			if (i < status.length) {
+				try {
+					out[i] = Integer.parseInt(status[i].trim());
+				} catch (NumberFormatException e) {
+					Log.warning("Unexpected data file status '" + status[i] + "' for " + replicas.get(i).dataPath);
+				}
+			}
+		}
+		return out;
+	}
+
+	@Override
+	public boolean replicate(Replica source, String destResource, boolean doChecksum) throws MyRodsException, IOException {
+		KeyValPair condInput = new KeyValPair();
+		condInput.put(Kw.ADMIN_KW, "");
+		condInput.put(Kw.REPL_NUM_KW, source.dataReplNum);	// source replica
+		condInput.put(Kw.DEST_RESC_NAME_KW, destResource);
+		if (doChecksum) {
+			if (!source.dataChecksum.equals("")) {
+				// also ensure that checksum of destination replica matches the ICAT stored source replica checksum
+				condInput.put(Kw.VERIFY_CHKSUM_KW, "");
+			} else {
+				// just calculate and store the destination replica checksum in ICAT
+				condInput.put(Kw.REG_CHKSUM_KW, "");
+			}
+		} else {
+			condInput.put(Kw.NO_COMPUTE_KW, "");
+		}
+		DataObjInp dataObjInp = new DataObjInp(source.path, condInput);
+		hirods.rcDataObjRepl(dataObjInp);
+		return !hirods.error;
+	}
+
+	@Override
+	public boolean trim(Replica replica) throws MyRodsException, IOException {
+		KeyValPair condInput = new KeyValPair();
+		condInput.put(Kw.ADMIN_KW, "");
+		condInput.put(Kw.COPIES_KW, "1");
+		condInput.put(Kw.REPL_NUM_KW, replica.dataReplNum);	// source replica to trim
+		DataObjInp dataObjInp = new DataObjInp(replica.path, condInput);
+		hirods.rcDataObjTrim(dataObjInp);
+		return !hirods.error;
+	}
+
+	@Override
+	public String checksum(Replica replica) throws MyRodsException, IOException {
+		KeyValPair condInput = new KeyValPair();
+		condInput.put(Kw.ADMIN_KW, "");
+		// the replica number also selects replicas in a resource hierarchy, where a leaf is no valid resource name
+		condInput.put(Kw.REPL_NUM_KW, replica.dataReplNum);
+		// calculate the checksum from the data file, even if a checksum is registered already
+		condInput.put(Kw.FORCE_CHKSUM_KW, "");
+		DataObjInp dataObjInp = new DataObjInp(replica.path, condInput);
+		String checksum = hirods.rcDataObjChksum(dataObjInp);
+		return hirods.error ? null : checksum;
+	}
+
+	/**
+	 * Flattens the pages of a query result into a sequence of rows.
+	 */
+	private static class RowIterator implements Iterator<String[]> {
+		private Iterator<GenQueryOut> pages;
+		private GenQueryOut page = null;
+		private int row = 0;
+
+		RowIterator(Iterator<GenQueryOut> pages) {
+			this.pages = pages;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (page == null || row >= page.rowCount) {
+				if (!pages.hasNext()) {
+					return false;
+				}
+				page = pages.next();
+				row = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public String[] next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return page.data[row++];
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+package nl.tsmeele.irelocate;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of replications in progress per storage host, shared by all processing threads.
+ * A replication counts for the host of its source replica and for the destination. The destination
+ * resource chooses the leaf (and host) that receives the replica, so the destination is limited as a
+ * whole, to the per host limit times the number of hosts of its leafs.
+ * If a data object has perfect replicas on several hosts, the least busy host is used as source.
+ * Threads wait for a host on a lock condition rather than a monitor, so that virtual threads unmount while they wait.
+ */
+public class HostLimiter {
+	private final int perHost;
+	private final int destinationLimit;
+	// resource name -> lowercase host name
+	private final Map<String,String> hosts = new HashMap<String,String>();
+	// host -> replications in progress
+	private final Map<String,Integer> inFlight = new HashMap<String,Integer>();
+	private int destinationInFlight = 0;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+
+	/**
+	 * @param rescList  resources of the data grid
+	 * @param destResc  destination (root) resource
+	 * @param perHost   maximum number of replications in progress per host
+	 */
+	public HostLimiter(IrodsResources rescList, Resource destResc, int perHost) {
+		this.perHost = Math.max(1, perHost);
+		for (Resource resc : rescList.resources.values()) {
+			hosts.put(resc.name, resc.loc.toLowerCase());
+		}
+		Set<String> destinationHosts = new HashSet<String>();
+		for (Resource leaf : rescList.expandToLeafs(destResc)) {
+			destinationHosts.add(leaf.loc.toLowerCase());
+		}
+		destinationLimit = this.perHost * Math.max(1, destinationHosts.size());
+	}
+
+	/**
+	 * @return host of the resource of the replica, or the resource name if its host is unknown
+	 */
+	public String hostOf(Replica r) {
+		String host = hosts.get(r.dataRescName);
+		return host == null ? r.dataRescName : host;
+	}
+
+	/**
+	 * @param decision  action decided for a data object
+	 * @return true if the action can start without waiting for a busy host
+	 */
+	public boolean isAvailable(DecisionEngine.Decision decision) {
+		if (decision.action != DecisionEngine.Action.REPLICATE && decision.action != DecisionEngine.Action.MOVE) return true;
+		lock.lock();
+		try {
+			return destinationInFlight < destinationLimit && choose(decision) != null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the source and destination hosts allow another replication.
+	 * @param decision  replicate action decided for a data object
+	 * @return source replica to replicate, to be passed to release when the replication has finished
+	 */
+	public Replica acquire(DecisionEngine.Decision decision) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (true) {
+				Replica source = destinationInFlight < destinationLimit ? choose(decision) : null;
+				if (source != null) {
+					inFlight.merge(hostOf(source), 1, Integer::sum);
+					destinationInFlight++;
+					return source;
+				}
+				released.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void release(Replica source) {
+		lock.lock();
+		try {
+			inFlight.computeIfPresent(hostOf(source), (host, count) -> count > 1 ? count - 1 : null);
+			destinationInFlight--;
+			// waiting threads may wait for different hosts
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the candidate on the least busy host that is below its limit, the preferred source wins a tie,
+	 *  or null if all hosts are at their limit
+	 */
+	private Replica choose(DecisionEngine.Decision decision) {
+		Replica best = null;
+		int bestCount = perHost;
+		for (Replica r : decision.candidates) {
+			int count = inFlight.getOrDefault(hostOf(r), 0);
+			if (count < bestCount || count == bestCount && r == decision.source && best != null) {
+				best = r;
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+
+	public String toString() {
+		lock.lock();
+		try {
+			return "HostLimiter{perHost=" + perHost + ", destination " + destinationInFlight + "/" + destinationLimit +
+					", in flight " + inFlight + "}";
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -1,94 +1,279 @@
 package nl.tsmeele.irelocate;
 
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.TreeMap;
 
 import nl.tsmeele.myrods.api.Columns;
 import nl.tsmeele.myrods.api.Flag;
-import nl.tsmeele.myrods.api.GenQueryInp;
-import nl.tsmeele.myrods.api.GenQueryOut;
-import nl.tsmeele.myrods.api.InxIvalPair;
-import nl.tsmeele.myrods.api.InxValPair;
-import nl.tsmeele.myrods.api.KeyValPair;
-import nl.tsmeele.myrods.high.Hirods;
 import nl.tsmeele.myrods.plumbing.MyRodsException;
 
 public class IrodsQuery {
 
-	public static List<String> dataObjectsOnResources(Hirods hirods, List<String> sourceResources, long startDataId)
+	/**
+	 * Finds the lowest and highest data id of the data objects that have one or more replicas 
+	 * on the given resources.
+	 * @param hirods          authenticated iRODS session
+	 * @param sourceResources names of the resources
+	 * @param startDataId     lowest data id to consider, 0 to consider all
+	 * @return lowest and highest data id, or null if no data objects match
+	 */
+	public static long[] dataIdRange(IrodsSession hirods, List<String> sourceResources, long startDataId)
 			throws MyRodsException, IOException {
-		StringBuilder sb = new StringBuilder();
-		boolean first = true;
-		for (String resc : sourceResources) {
-			if (first) {
-				first = false;
-			} else {
-				sb.append(",");
-			}
-			sb.append("'" + resc + "'");
+		String min = aggregateDataId(hirods, sourceResources, startDataId, Flag.SELECT_MIN);
+		String max = aggregateDataId(hirods, sourceResources, startDataId, Flag.SELECT_MAX);
+		if (min == null || max == null) {
+			return null;
 		}
-		String quotedResourceList = sb.toString();
-		
-		// SELECT clause
-		InxIvalPair inxIvalPair = new InxIvalPair();
-		inxIvalPair.put(Columns.DATA_ID.getId(), Flag.SELECT_NORMAL | Flag.ORDER_BY);
+		return new long[] { Long.parseLong(min), Long.parseLong(max) };
+	}
 
-		// WHERE clause
-		InxValPair inxValPair = new InxValPair();
-		inxValPair.put(Columns.DATA_RESC_NAME.getId(), "in (" + quotedResourceList + ")");
+	private static String aggregateDataId(IrodsSession hirods, List<String> sourceResources, long startDataId, int aggregate)
+			throws MyRodsException, IOException {
+		CatalogQuery query = new CatalogQuery()
+				.select(Columns.DATA_ID, aggregate)
+				.where(Columns.DATA_RESC_NAME, "in (" + CatalogQuery.quotedList(sourceResources) + ")")
+				.maxRows(1);
 		if (startDataId != 0L) {
-			inxValPair.put(Columns.DATA_ID.getId(), ">= '" + startDataId + "'");
-		}
-
-		int maxRows = 256;
-		GenQueryInp genQueryInp = new GenQueryInp(maxRows, 0, 0, 0, new KeyValPair(), inxIvalPair, inxValPair);
-		Iterator<GenQueryOut> it = hirods.genQueryIterator(genQueryInp);
-		List<String> out = new ArrayList<String>();
-		while (it.hasNext()) {
-			GenQueryOut genOut = it.next();
-			for (int i = 0; i < genOut.rowCount; i++) {
-				String dataId = genOut.data[i][0]; // data_id
-				out.add(dataId);
-			}
+			query.where(Columns.DATA_ID, ">= '" + startDataId + "'");
+		}
+		Iterator<String[]> rows = query.execute(hirods);
+		if (!rows.hasNext()) {
+			return null;
+		}
+		String value = rows.next()[0];
+		return value == null || value.equals("") ? null : value;
+	}
+
+	/**
+	 * Counts the replicas on each of the given resources and sums their sizes, using a single aggregate query.
+	 * @param hirods          authenticated iRODS session
+	 * @param sourceResources names of the resources
+	 * @param startDataId     lowest data id to consider, 0 to consider all
+	 * @return resource name -> number of replicas and their total size in bytes, resources without replicas are absent
+	 */
+	public static Map<String,long[]> replicaTotalsPerResource(IrodsSession hirods, List<String> sourceResources, long startDataId)
+			throws MyRodsException, IOException {
+		// the non-aggregated column groups the result
+		CatalogQuery query = new CatalogQuery()
+				.select(Columns.DATA_RESC_NAME, Flag.SELECT_NORMAL)
+				.select(Columns.DATA_ID, Flag.SELECT_COUNT)
+				.select(Columns.DATA_SIZE, Flag.SELECT_SUM)
+				.where(Columns.DATA_RESC_NAME, "in (" + CatalogQuery.quotedList(sourceResources) + ")");
+		if (startDataId != 0L) {
+			query.where(Columns.DATA_ID, ">= '" + startDataId + "'");
+		}
+		Iterator<String[]> rows = query.execute(hirods);
+		Map<String,long[]> out = new TreeMap<String,long[]>();
+		while (rows.hasNext()) {
+			String[] row = rows.next();
+			out.put(row[0], new long[] { parseAggregate(row[1]), parseAggregate(row[2]) });
 		}
 		return out;
 	}
 
-	public static List<Replica> getReplicas(Hirods hirods, String dataId) throws MyRodsException, IOException {
-		// SELECT clause
-		InxIvalPair inxIvalPair = new InxIvalPair();
-		inxIvalPair.put(Columns.DATA_ID.getId(), Flag.SELECT_NORMAL | Flag.ORDER_BY);
-		inxIvalPair.put(Columns.COLL_NAME.getId(), Flag.SELECT_NORMAL);
-		inxIvalPair.put(Columns.DATA_NAME.getId(), Flag.SELECT_NORMAL);
-		inxIvalPair.put(Columns.DATA_REPL_NUM.getId(), Flag.SELECT_NORMAL);
-		inxIvalPair.put(Columns.DATA_REPL_STATUS.getId(), Flag.SELECT_NORMAL);
-		inxIvalPair.put(Columns.DATA_SIZE.getId(), Flag.SELECT_NORMAL);
-		inxIvalPair.put(Columns.DATA_CHECKSUM.getId(), Flag.SELECT_NORMAL);
-		inxIvalPair.put(Columns.DATA_RESC_NAME.getId(), Flag.SELECT_NORMAL);
-		inxIvalPair.put(Columns.DATA_PATH.getId(), Flag.SELECT_NORMAL);
-		// WHERE clause
-		InxValPair inxValPair = new InxValPair();
-		inxValPair.put(Columns.DATA_ID.getId(), "= '" + dataId + "'");
-
-		int maxRows = 256;
-		GenQueryInp genQueryInp = new GenQueryInp(maxRows, 0, 0, 0, new KeyValPair(), inxIvalPair, inxValPair);
-		Iterator<GenQueryOut> it = hirods.genQueryIterator(genQueryInp);
-		List<Replica> out = new ArrayList<Replica>();
-		while (it.hasNext()) {
-			GenQueryOut genOut = it.next();
-			for (int i = 0; i < genOut.rowCount; i++) {
-				Replica r = new Replica(genOut.data[i][0], // data_id
-						genOut.data[i][1], // coll_name
-						genOut.data[i][2], // data_name
-						genOut.data[i][3], // data_repl_num
-						genOut.data[i][4], // data_repl_status
-						genOut.data[i][5], // data_size
-						genOut.data[i][6], // data_checksum
-						genOut.data[i][7], // data_resc_name
-						genOut.data[i][8]); // data_path
-				out.add(r);
+	/**
+	 * Selects a sample of the data objects that have one or more replicas on the given resources,
+	 * spread evenly over a range of data ids. Each sample is the first data object at or after
+	 * an evenly spaced data id, so that no enumeration of the range is needed.
+	 * @param hirods          authenticated iRODS session
+	 * @param sourceResources names of the resources
+	 * @param minDataId       lowest data id of the range
+	 * @param maxDataId       highest data id of the range
+	 * @param size            number of samples requested
+	 * @return distinct data ids in ascending order, may be fewer than requested
+	 */
+	public static long[] sampleDataIds(IrodsSession hirods, List<String> sourceResources, long minDataId, long maxDataId, int size)
+			throws MyRodsException, IOException {
+		long[] out = new long[size];
+		int count = 0;
+		long span = maxDataId - minDataId + 1;
+		for (int i = 0; i < size; i++) {
+			long from = minDataId + (long) (span * ((double) i / size));
+			if (count > 0 && from <= out[count - 1]) {
+				// the previous sample is already beyond this point
+				from = out[count - 1] + 1;
+			}
+			if (from > maxDataId) break;
+			Iterator<String[]> rows = new CatalogQuery()
+					.select(Columns.DATA_ID, Flag.SELECT_MIN)
+					.where(Columns.DATA_RESC_NAME, "in (" + CatalogQuery.quotedList(sourceResources) + ")")
+					.where(Columns.DATA_ID, "between '" + from + "' '" + maxDataId + "'")
+					.maxRows(1)
+					.execute(hirods);
+			if (!rows.hasNext()) break;
+			String value = rows.next()[0];
+			if (value == null || value.equals("")) break;
+			out[count++] = Long.parseLong(value);
+		}
+		return Arrays.copyOf(out, count);
+	}
+
+	private static long parseAggregate(String value) {
+		try {
+			return new BigDecimal(value.trim()).longValue();
+		} catch (NumberFormatException e) {
+			return 0L;
+		}
+	}
+
+	/**
+	 * Enumerates the data objects that have one or more replicas on the given resources.
+	 * Results are fetched page by page while the caller iterates.
+	 * @param hirods          authenticated iRODS session, must remain open during the iteration
+	 * @param sourceResources names of the resources
+	 * @param startDataId     lowest data id to select, 0 to select all
+	 * @param endDataId       highest data id to select, Long.MAX_VALUE to select all
+	 * @return data ids in ascending order, along with the size of the data objects
+	 */
+	public static DataObjectIterator dataObjectsOnResources(IrodsSession hirods, List<String> sourceResources, 
+			long startDataId, long endDataId) throws MyRodsException, IOException {
+		CatalogQuery query = new CatalogQuery()
+				.select(Columns.DATA_ID, Flag.SELECT_NORMAL | Flag.ORDER_BY)
+				.select(Columns.DATA_SIZE, Flag.SELECT_NORMAL)
+				.where(Columns.DATA_RESC_NAME, "in (" + CatalogQuery.quotedList(sourceResources) + ")");
+		whereDataIdRange(query, startDataId, endDataId);
+		return new DataObjectIterator(query.execute(hirods));
+	}
+
+	/**
+	 * Enumerates the data objects that have a replica with status good on the given resources.
+	 * The replica status is taken from the catalog, the data files are not checked.
+	 * Results are fetched page by page while the caller iterates.
+	 * @param hirods          authenticated iRODS session, must remain open during the iteration
+	 * @param resources       names of the (leaf) resources
+	 * @param startDataId     lowest data id to select, 0 to select all
+	 * @param endDataId       highest data id to select, Long.MAX_VALUE to select all
+	 * @return data ids in ascending order
+	 */
+	public static DataObjectIterator dataObjectsWithGoodReplica(IrodsSession hirods, List<String> resources,
+			long startDataId, long endDataId) throws MyRodsException, IOException {
+		CatalogQuery query = new CatalogQuery()
+				.select(Columns.DATA_ID, Flag.SELECT_NORMAL | Flag.ORDER_BY)
+				.select(Columns.DATA_SIZE, Flag.SELECT_NORMAL)
+				.where(Columns.DATA_RESC_NAME, "in (" + CatalogQuery.quotedList(resources) + ")")
+				.where(Columns.DATA_REPL_STATUS, "= '1'");
+		whereDataIdRange(query, startDataId, endDataId);
+		return new DataObjectIterator(query.execute(hirods));
+	}
+
+	private static void whereDataIdRange(CatalogQuery query, long startDataId, long endDataId) {
+		if (endDataId != Long.MAX_VALUE) {
+			query.where(Columns.DATA_ID, "between '" + startDataId + "' '" + endDataId + "'");
+		} else if (startDataId != 0L) {
+			query.where(Columns.DATA_ID, ">= '" + startDataId + "'");
+		}
+	}
+
+	/**
+	 * Iterates over the data ids of a query result with rows of data id and data size.
+	 * Replicas of a data object may differ in size and then have separate rows,
+	 * these rows are consecutive and are combined into one data object of the largest size.
+	 */
+	public static class DataObjectIterator implements PrimitiveIterator.OfLong {
+		private Iterator<String[]> rows;
+		// row read ahead that belongs to the next data object
+		private String[] ahead = null;
+		private long dataSize = 0L;
+
+		DataObjectIterator(Iterator<String[]> rows) {
+			this.rows = rows;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return ahead != null || rows.hasNext();
+		}
+
+		@Override
+		public long nextLong() {
+			String[] row = ahead != null ? ahead : rows.next();
+			ahead = null;
+			long dataId = Long.parseLong(row[0]); // data_id
+			long size = parseSize(row[1]); // data_size
+			while (rows.hasNext()) {
+				row = rows.next();
+				if (Long.parseLong(row[0]) != dataId) {
+					ahead = row;
+					break;
+				}
+				size = Math.max(size, parseSize(row[1]));
+			}
+			dataSize = size;
+			return dataId;
+		}
+
+		/**
+		 * @return size in bytes of the data object last returned by nextLong
+		 */
+		public long dataSize() {
+			return dataSize;
+		}
+
+		private static long parseSize(String size) {
+			try {
+				return Long.parseLong(size);
+			} catch (NumberFormatException e) {
+				return 0L;
+			}
+		}
+	}
+
+	/**
+	 * Fetches the replicas of a block of data objects using a single query.
+	 * @param hirods  authenticated iRODS session
+	 * @param dataIds data ids of the data objects to lookup, in ascending order
+	 * @param count   number of data ids to use
+	 * @return replicas of each data object, at the same index as its data id.
+	 *  Data objects that no longer exist have an empty list.
+	 */
+	public static List<List<Replica>> getReplicas(IrodsSession hirods, long[] dataIds, int count) throws MyRodsException, IOException {
+		List<List<Replica>> out = new ArrayList<List<Replica>>(count);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				sb.append(",");
+			}
+			sb.append('\'').append(dataIds[i]).append('\'');
+			out.add(new ArrayList<Replica>());
+		}
+		if (count == 0) {
+			return out;
+		}
+		Iterator<String[]> rows = new CatalogQuery()
+				.select(Columns.DATA_ID, Flag.SELECT_NORMAL | Flag.ORDER_BY)
+				.select(Columns.COLL_NAME, Flag.SELECT_NORMAL)
+				.select(Columns.DATA_NAME, Flag.SELECT_NORMAL)
+				.select(Columns.DATA_REPL_NUM, Flag.SELECT_NORMAL)
+				.select(Columns.DATA_REPL_STATUS, Flag.SELECT_NORMAL)
+				.select(Columns.DATA_SIZE, Flag.SELECT_NORMAL)
+				.select(Columns.DATA_CHECKSUM, Flag.SELECT_NORMAL)
+				.select(Columns.DATA_RESC_NAME, Flag.SELECT_NORMAL)
+				.select(Columns.DATA_PATH, Flag.SELECT_NORMAL)
+				.select(Columns.DATA_MODIFY_TIME, Flag.SELECT_NORMAL)
+				.where(Columns.DATA_ID, "in (" + sb.toString() + ")")
+				.execute(hirods);
+		while (rows.hasNext()) {
+			String[] row = rows.next();
+			Replica r = new Replica(row[0], // data_id
+					row[1], // coll_name
+					row[2], // data_name
+					row[3], // data_repl_num
+					row[4], // data_repl_status
+					row[5], // data_size
+					row[6], // data_checksum
+					row[7], // data_resc_name
+					row[8]); // data_path
+			r.dataModifyTime = row[9];
+			int index = Arrays.binarySearch(dataIds, 0, count, Long.parseLong(r.dataId));
+			if (index >= 0) {
+				out.get(index).add(r);
 			}
 		}
 		return out;
@@ -2,66 +2,132 @@ package nl.tsmeele.irelocate;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import nl.tsmeele.myrods.api.Columns;
 import nl.tsmeele.myrods.api.Flag;
-import nl.tsmeele.myrods.api.GenQueryInp;
-import nl.tsmeele.myrods.api.GenQueryOut;
-import nl.tsmeele.myrods.api.InxIvalPair;
-import nl.tsmeele.myrods.api.InxValPair;
-import nl.tsmeele.myrods.api.KeyValPair;
-import nl.tsmeele.myrods.high.Hirods;
 import nl.tsmeele.myrods.plumbing.MyRodsException;
 
+/**
+ * Immutable index of the resource topology of the data grid.
+ * All lookups are precomputed when the index is built, so that their cost does not depend
+ * on the number of resources in the grid.
+ */
 public class IrodsResources {
-	public HashMap<String,Resource> resources = new HashMap<String,Resource>();
-	public List<String> parentResources = new ArrayList<String>();
-	
-	public IrodsResources(Hirods hirods) throws MyRodsException, IOException {
+	public final Map<String,Resource> resources;
+	private final Map<String,Resource> byId;
+	// parent resource id -> direct children
+	private final Map<String,List<Resource>> children;
+	// resource -> leafs of the tree that has the resource as root
+	private final Map<Resource,List<Resource>> leafs;
+	// resource -> the resource itself and all its ancestors
+	private final Map<Resource,Set<Resource>> ancestors;
+	// lowercase host name -> storage resources located on the host
+	private final Map<String,List<Resource>> storageByHost;
+
+	public IrodsResources(IrodsSession hirods) throws MyRodsException, IOException {
+		this(queryResources(hirods));
+	}
+
+	/**
+	 * @param rescList all resources of the data grid
+	 */
+	public IrodsResources(Collection<Resource> rescList) {
+		Map<String,Resource> resources = new HashMap<String,Resource>();
+		Map<String,Resource> byId = new HashMap<String,Resource>();
+		Map<String,List<Resource>> children = new HashMap<String,List<Resource>>();
+		Map<String,List<Resource>> storageByHost = new HashMap<String,List<Resource>>();
+		for (Resource resc : rescList) {
+			resources.put(resc.name, resc);
+			byId.put(resc.id, resc);
+			if (!resc.parent.equals("") && !resc.parent.equals(resc.id)) {
+				children.computeIfAbsent(resc.parent, k -> new ArrayList<Resource>()).add(resc);
+			}
+			if (resc.isStorageResource()) {
+				storageByHost.computeIfAbsent(resc.loc.toLowerCase(), k -> new ArrayList<Resource>()).add(resc);
+			}
+		}
+		this.resources = Collections.unmodifiableMap(resources);
+		this.byId = byId;
+		this.children = children;
+		this.storageByHost = storageByHost;
+
+		// precompute the leafs and ancestors of every resource
+		Map<Resource,List<Resource>> leafs = new HashMap<Resource,List<Resource>>();
+		Map<Resource,Set<Resource>> ancestors = new HashMap<Resource,Set<Resource>>();
+		for (Resource resc : resources.values()) {
+			computeLeafs(resc, leafs, new HashSet<Resource>());
+			Set<Resource> path = new HashSet<Resource>();
+			Resource r = resc;
+			// the set also guards against loops in the hierarchy
+			while (r != null && path.add(r)) {
+				r = byId.get(r.parent);
+			}
+			ancestors.put(resc, Collections.unmodifiableSet(path));
+		}
+		this.leafs = leafs;
+		this.ancestors = ancestors;
+	}
+
+	private static List<Resource> queryResources(IrodsSession hirods) throws MyRodsException, IOException {
 			if (!hirods.isAuthenticated()) throw new RuntimeException("iRODS connection not authenticated");
 			String host = hirods.getHost().toLowerCase();
+			List<Resource> out = new ArrayList<Resource>();
 			// collect properties of all resources in the data grid
-			// select clause
-			InxIvalPair inxIvalPair = new InxIvalPair();
-			inxIvalPair.put(Columns.RESC_ID.getId(), Flag.SELECT_NORMAL);	
-			inxIvalPair.put(Columns.RESC_NAME.getId(), Flag.SELECT_NORMAL);	
-			inxIvalPair.put(Columns.RESC_LOC.getId(), Flag.SELECT_NORMAL);
 			// known types:  "random", "passthru", "unixfilesystem"
-			inxIvalPair.put(Columns.RESC_TYPE_NAME.getId(), Flag.SELECT_NORMAL);	
-			inxIvalPair.put(Columns.RESC_PARENT.getId(), Flag.SELECT_NORMAL);	
-			// where clause - empty
-			InxValPair inxValPairColl = new InxValPair();
-
-			int maxRows = 256;
-
-			// query the resources
-			GenQueryInp genQueryInp = new GenQueryInp(maxRows, 0, 0, 0,
-					new KeyValPair(), inxIvalPair , inxValPairColl);
-			Iterator<GenQueryOut> it = hirods.genQueryIterator(genQueryInp);
-			while (it.hasNext()) {
-				GenQueryOut genOut = it.next();
-				for (int i = 0; i < genOut.rowCount; i++) {
-					Resource resc = new Resource(
-						genOut.data[i][0], // resc_id
-						genOut.data[i][1], // resc_name
-						genOut.data[i][2], // resc_loc
-						genOut.data[i][3], // resc_type_name
-						genOut.data[i][4], // resc_parent (= resc_id of parent)
-						// infer if resource is located on iRODS host itself
-						// TODO: should do dns lookup and compare ip addresses
-						genOut.data[i][2].toLowerCase().equals(host) ||
-						genOut.data[i][2].toLowerCase().equals("localhost"));
-					resources.put(resc.name, resc);
-					if (!resc.parent.equals("")) {
-						parentResources.add(resc.parent);
-					}
-				}
+			Iterator<String[]> rows = new CatalogQuery()
+					.select(Columns.RESC_ID, Flag.SELECT_NORMAL)
+					.select(Columns.RESC_NAME, Flag.SELECT_NORMAL)
+					.select(Columns.RESC_LOC, Flag.SELECT_NORMAL)
+					.select(Columns.RESC_TYPE_NAME, Flag.SELECT_NORMAL)
+					.select(Columns.RESC_PARENT, Flag.SELECT_NORMAL)
+					.execute(hirods);
+			while (rows.hasNext()) {
+				String[] row = rows.next();
+				Resource resc = new Resource(
+					row[0], // resc_id
+					row[1], // resc_name
+					row[2], // resc_loc
+					row[3], // resc_type_name
+					row[4], // resc_parent (= resc_id of parent)
+					// infer if resource is located on iRODS host itself
+					// TODO: should do dns lookup and compare ip addresses
+					row[2].toLowerCase().equals(host) ||
+					row[2].toLowerCase().equals("localhost"));
+				out.add(resc);
 			}
+			return out;
 	}
-	
+
+	private List<Resource> computeLeafs(Resource resc, Map<Resource,List<Resource>> leafs, Set<Resource> visiting) {
+		List<Resource> out = leafs.get(resc);
+		if (out != null) {
+			return out;
+		}
+		List<Resource> direct = children.get(resc.id);
+		// if resc has no children then just return this resc
+		if (direct == null || !visiting.add(resc)) {
+			out = Collections.singletonList(resc);
+		} else {
+			// resc is parent, collect the leafs of its children
+			Set<Resource> collected = new LinkedHashSet<Resource>();
+			for (Resource child : direct) {
+				collected.addAll(computeLeafs(child, leafs, visiting));
+			}
+			out = Collections.unmodifiableList(new ArrayList<Resource>(collected));
+		}
+		leafs.put(resc, out);
+		return out;
+	}
+
 	/**
 	 * @param rescName name of resource to lookup
 	 * @return resource the selected resource or null if the resource does not exist
@@ -69,24 +135,20 @@ public class IrodsResources {
 	public Resource get(String rescName) {
 		if (rescName == null) return null;
 		return resources.get(rescName);
-	}	
-	
+	}
+
 	/**
 	 * @param rescid id of resource to lookup
 	 * @return resource the selected resource or null if the resource does not exist
 	 */
-	private Resource getById(String rescId) {
-		for (Resource r : resources.values()) {
-			if (r.id.equals(rescId)) {
-				return r;
-			}
-		}
-		return null;
+	public Resource getById(String rescId) {
+		if (rescId == null) return null;
+		return byId.get(rescId);
 	}
 
 	/**
 	 * @param resc selected resource
-	 * @return true if resource is a storage resource or a coordinating resource 
+	 * @return true if resource is a storage resource or a coordinating resource
 	 * with at least one storage resource in its hierarchy, otherwise false.
 	 */
 	public boolean hasStorageResource(Resource resc) {
@@ -97,7 +159,7 @@ public class IrodsResources {
 		}
 		return false;
 	}
-	
+
 	/**
 	 * @param rescTree root resource of a tree
 	 * @param resc selected resource
@@ -105,60 +167,43 @@ public class IrodsResources {
 	 */
 	public boolean isInTree(Resource rescTree, Resource resc) {
 		if (rescTree == null || resc == null) return false;
-		if (resc == rescTree) return true;
-		Resource parent = getById(resc.parent);
-		return isInTree(rescTree, parent);
+		Set<Resource> path = ancestors.get(resc);
+		return path != null && path.contains(rescTree);
 	}
-	
+
 	public List<Resource> otherStorageResourcesOnSameHosts(Resource resc) {
 		List<Resource> leafs = expandToLeafs(resc);
+		Set<Resource> leafSet = new HashSet<Resource>(leafs);
+		Set<String> hosts = new LinkedHashSet<String>();
+		for (Resource leaf : leafs) {
+			hosts.add(leaf.loc.toLowerCase());
+		}
 		List<Resource> others = new ArrayList<Resource>();
-		for (Resource r : resources.values()) {
-			// only consider storage resources
-			if (!r.isStorageResource()) {
-				continue;
-			}
-			// skip resources that are part of the destination resource
-			if (leafs.contains(r)) {
-				continue;
-			}
-			// select resource if located on a host
-			// similar to any of the destination leaf locations
-			for (Resource leaf : leafs) {
-				if (r.loc.toLowerCase().equals(leaf.loc.toLowerCase())) {
+		// select storage resources located on a host similar to any of the destination leaf locations
+		for (String host : hosts) {
+			for (Resource r : storageByHost.getOrDefault(host, Collections.emptyList())) {
+				// skip resources that are part of the destination resource
+				if (!leafSet.contains(r)) {
 					others.add(r);
-					break;
 				}
 			}
 		}
 		return others;
 	}
-	
+
 	/**
 	 * @param resc selected (root) resource
-	 * @return list of resources that are the leafs in the tree referenced by the root resource. 
+	 * @return list of resources that are the leafs in the tree referenced by the root resource.
 	 */
 	public List<Resource> expandToLeafs(Resource resc) {
-		List<Resource> out = new ArrayList<Resource>();
-		// if resc has no children then just return this resc
-		if (!parentResources.contains(resc.id)) {
-			out.add(resc);
-			return out;
-		}
-		// resc is parent, return its children
-		for (Resource r : resources.values()) {
-			// skip self to avoid loops
-			if (r.name.equals(resc.name)) {
-				continue;
-			}
-			// is this a direct child of resc? then add its leafs
-			if (r.parent.equals(resc.id)) {
-				out.addAll(expandToLeafs(r));
-			}
+		List<Resource> out = leafs.get(resc);
+		if (out == null) {
+			// resource is not part of this index
+			out = Collections.singletonList(resc);
 		}
 		return out;
 	}
-	
+
 
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
@@ -173,5 +218,5 @@ public class IrodsResources {
 		}
 		return sb.toString();
 	}
-	
+
 }
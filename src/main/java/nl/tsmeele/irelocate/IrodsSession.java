@@ -0,0 +1,86 @@
+package nl.tsmeele.irelocate;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import nl.tsmeele.myrods.plumbing.MyRodsException;
+
+/**
+ * Session with an iRODS server, limited to the operations that irelocate uses.
+ * HirodsSession carries them out with the iRODS protocol, the load test of the benchmarks answers
+ * them from a simulated data grid. Like Hirods, a session is used by one thread at a time and
+ * reports the outcome of the most recent operation through error() and intInfo().
+ */
+public interface IrodsSession {
+
+	/**
+	 * Opens sessions, not yet logged in, with the server at host and port.
+	 */
+	interface Factory {
+		IrodsSession open(String host, int port);
+	}
+
+	boolean nativeLogin(String userName, String zone, String password, String proxyUser, String proxyZone)
+			throws MyRodsException, IOException;
+
+	boolean pamLogin(String userName, String zone, String password, String proxyUser, String proxyZone)
+			throws MyRodsException, IOException;
+
+	/**
+	 * @return type of the user, e.g. "rodsadmin", or null if the user does not exist or on error
+	 */
+	String getUserType(String userName, String zone) throws MyRodsException, IOException;
+
+	void rcDisconnect() throws MyRodsException, IOException;
+
+	boolean isAuthenticated();
+
+	String getHost();
+
+	/**
+	 * @return true if the most recent operation failed
+	 */
+	boolean error();
+
+	/**
+	 * @return status of the most recent operation, an iRODS error code if it failed
+	 */
+	int intInfo();
+
+	/**
+	 * @param query  general query on the catalog
+	 * @return rows of the result, with a value for each selected column, fetched page by page while
+	 *         the caller iterates
+	 */
+	Iterator<String[]> query(CatalogQuery query) throws MyRodsException, IOException;
+
+	/**
+	 * Checks the data files of replicas.
+	 * @param replicas  replicas to check
+	 * @return status per replica: 1 if the data file has the size of the replica, 0 if the size differs,
+	 *         -1 if the data file does not exist or is not a file, or an iRODS error code
+	 */
+	int[] datafileStatus(List<Replica> replicas) throws MyRodsException, IOException;
+
+	/**
+	 * @param source        replica to copy
+	 * @param destResource  resource of the new replica
+	 * @param doChecksum    true to register (and if possible verify) the checksum of the new replica
+	 * @return true if the replica has been created on the destination resource
+	 */
+	boolean replicate(Replica source, String destResource, boolean doChecksum) throws MyRodsException, IOException;
+
+	/**
+	 * @return true if the replica has been removed
+	 */
+	boolean trim(Replica replica) throws MyRodsException, IOException;
+
+	/**
+	 * Calculates the checksum of a replica from its data file and registers it.
+	 * @param replica  replica to checksum, selected by its replica number
+	 * @return checksum, or null on error
+	 */
+	String checksum(Replica replica) throws MyRodsException, IOException;
+
+}
@@ -0,0 +1,97 @@
+package nl.tsmeele.irelocate;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of the duration of an operation over fixed buckets, safe for concurrent use.
+ * The bucket bounds range from a millisecond (catalog queries) to an hour (transfers of large objects).
+ */
+public class LatencyHistogram {
+	// upper bounds of the buckets in seconds, the last bucket is unbounded
+	static final double[] BOUNDS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+			1.0, 2.5, 5.0, 10.0, 30.0, 60.0, 300.0, 900.0, 3600.0 };
+	private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+	static {
+		for (int i = 0; i < BOUNDS.length; i++) {
+			BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1e9);
+		}
+	}
+
+	public final String name;
+	private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumNanos = new LongAdder();
+
+	/**
+	 * @param name  name of the operation, used in the metric names
+	 */
+	public LatencyHistogram(String name) {
+		this.name = name;
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		int i = 0;
+		while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+			i++;
+		}
+		buckets[i].increment();
+		count.increment();
+		sumNanos.add(nanos);
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	public long sumNanos() {
+		return sumNanos.sum();
+	}
+
+	/**
+	 * @return average duration in milliseconds, 0 if nothing has been recorded
+	 */
+	public double meanMillis() {
+		long n = count.sum();
+		return n == 0L ? 0.0 : sumNanos.sum() / 1e6 / n;
+	}
+
+	/**
+	 * @param quantile  fraction between 0 and 1
+	 * @return upper bound in milliseconds of the bucket that holds the quantile, 0 if nothing has been recorded
+	 */
+	public double quantileMillis(double quantile) {
+		long n = count.sum();
+		if (n == 0L) return 0.0;
+		long rank = (long) Math.ceil(quantile * n);
+		long seen = 0L;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			seen += buckets[i].sum();
+			if (seen >= rank) {
+				return BOUNDS[i] * 1000.0;
+			}
+		}
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Appends the samples of the histogram in the Prometheus text exposition format,
+	 * labeled with the name of the operation.
+	 * @param sb      output
+	 * @param metric  name of the metric
+	 */
+	public void appendPrometheus(StringBuilder sb, String metric) {
+		long cumulative = 0L;
+		for (int i = 0; i < buckets.length; i++) {
+			cumulative += buckets[i].sum();
+			sb.append(metric).append("_bucket{operation=\"").append(name).append("\",le=\"")
+				.append(i < BOUNDS.length ? Double.toString(BOUNDS[i]) : "+Inf").append("\"} ")
+				.append(cumulative).append('\n');
+		}
+		sb.append(metric).append("_sum{operation=\"").append(name).append("\"} ").append(sumNanos.sum() / 1e9).append('\n');
+		sb.append(metric).append("_count{operation=\"").append(name).append("\"} ").append(cumulative).append('\n');
+	}
+
+}
@@ -1,83 +1,226 @@
 package nl.tsmeele.irelocate;
 
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+import nl.tsmeele.log.Log;
+
+/**
+ * Log of the actions taken on data objects.
+ * The processing threads hand their records to a ring buffer, a background writer appends them
+ * to the file in groups, with one flush per group. The writer sleeps while there is nothing to write
+ * and is woken by the next record. If requested the file is also synchronized to disk periodically,
+ * and it is always synchronized when the log is closed.
+ * The log is either human readable text, or tab separated values for analysis.
+ */
 public class LogFile {
+	static final int BUFFER_CAPACITY = 8192;
+	// time a processing thread waits for the writer when the buffer is full
+	private static final long FULL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+	private static final String TSV_HEADER = "#data_id\tsize\tmillis\toutcome\tresource\tpath\tmessage";
 	private String logfilePath;
+	private boolean tsv;
+	private long syncIntervalNanos;
+	private FileOutputStream out = null;
 	private BufferedWriter logfile = null;
-	
+	private RingBuffer<Entry> buffer = new RingBuffer<Entry>(BUFFER_CAPACITY);
+	private Thread writer = null;
+	private volatile boolean closing = false;
+	// true while the writer sleeps or is about to, a new record must then wake it
+	private volatile boolean idle = false;
+	// first write error, reported to the processing threads
+	private volatile IOException failure = null;
+
+	private static class Entry {
+		final String outcome;
+		final long dataId, size, nanos;
+		final String path, rescName, message;
+
+		Entry(String outcome, long dataId, long size, long nanos, String path, String rescName, String message) {
+			this.outcome = outcome;
+			this.dataId = dataId;
+			this.size = size;
+			this.nanos = nanos;
+			this.path = path;
+			this.rescName = rescName;
+			this.message = message;
+		}
+	}
+
 	public LogFile(String logfilePath) {
+		this(logfilePath, false, 0L);
+	}
+
+	/**
+	 * @param logfilePath        path of the log, records are appended
+	 * @param tsv                true to write tab separated values instead of text
+	 * @param syncIntervalMillis interval to synchronize the log to disk, 0 to leave this to the operating system
+	 */
+	public LogFile(String logfilePath, boolean tsv, long syncIntervalMillis) {
+		this.tsv = tsv;
+		this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
 		openAppend(logfilePath);
+		writer = new Thread(this::writeLoop, "LogFile");
+		writer.setDaemon(true);
+		writer.start();
 	}
-	
+
 	public void openAppend(String logfilePath) {
 		if (logfile != null) return;
 		this.logfilePath = logfilePath;
 		try {
-			logfile = new BufferedWriter(new FileWriter(logfilePath, true));
+			boolean isNew = new File(logfilePath).length() == 0L;
+			out = new FileOutputStream(logfilePath, true);
+			logfile = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+			if (tsv && isNew) {
+				logfile.write(TSV_HEADER + "\n");
+			}
 		} catch (IOException e) {
 			// logfile is null upon any error
+			failure = e;
 		}
 	}
-	
+
+	/**
+	 * Writes the remaining records and closes the log.
+	 */
 	public void close() {
+		closing = true;
+		if (writer != null) {
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				// close anyway
+			}
+			writer = null;
+		}
 		if (logfile != null) {
 			try {
 				logfile.close();
 			} catch (IOException e) {
 				// we ignore close errors
 			}
+			logfile = null;
 		}
 	}
-	
-	public synchronized void logDone(String path) throws IOException {
-		openAppend(logfilePath);
-		logfile.write("OK REPLICATED " + path + "\n");
-		logfile.flush();
+
+	public void logDone(long dataId, long size, long nanos, String path) throws IOException {
+		append(new Entry("REPLICATED", dataId, size, nanos, path, null, null));
 	}
-	
-	public synchronized void logTrimmed(String path, String rescName) throws IOException {
-		openAppend(logfilePath);
-		logfile.write("OK " + "TRIMMED(" + rescName + ") " + path + "\n");
-		logfile.flush();
+
+	public void logTrimmed(long dataId, long size, long nanos, String path, String rescName) throws IOException {
+		append(new Entry("TRIMMED", dataId, size, nanos, path, rescName, null));
 	}
-	
-	public synchronized void logError(String path, String error) throws IOException {
-		openAppend(logfilePath);
-		logfile.write("ERROR " + path + " : " + error + "\n");
-		logfile.flush();
+
+	public void logVerified(long dataId, long size, long nanos, String path, String rescName) throws IOException {
+		append(new Entry("VERIFIED", dataId, size, nanos, path, rescName, null));
 	}
-	
 
-	public static Set<String> slurpCompletedObjects(String path) throws IOException  {
-		Set<String> out = new HashSet<String>();
-		BufferedReader br;
-		try {
-			br = new BufferedReader(new FileReader(path));
-		} catch (FileNotFoundException e) {
-			return null;
+	public void logError(long dataId, long size, long nanos, String path, String error) throws IOException {
+		append(new Entry("ERROR", dataId, size, nanos, path, null, error));
+	}
+
+	private void append(Entry entry) throws IOException {
+		if (failure != null) {
+			throw new IOException("Unable to write log " + logfilePath + ": " + failure.getMessage());
 		}
-		try {
-			String line = br.readLine();
-			while (line != null) {
-				if (line.startsWith("OK ")) {
-					String objPath = line.substring(3);
-					out.add(objPath);
+		// a full buffer means the disk cannot keep up, wait for the writer
+		while (!buffer.offer(entry)) {
+			if (closing || failure != null) {
+				throw new IOException("Unable to write log " + logfilePath);
+			}
+			LockSupport.parkNanos(FULL_WAIT_NANOS);
+		}
+		if (idle) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	private void writeLoop() {
+		long lastSync = System.nanoTime();
+		boolean unsynced = false;
+		while (true) {
+			// read the state before draining, so that records added before closing are written
+			boolean last = closing;
+			int count = 0;
+			try {
+				Entry entry;
+				while ((entry = buffer.poll()) != null) {
+					write(entry);
+					count++;
+				}
+				if (count > 0) {
+					// group commit: one flush for all records that were waiting
+					logfile.flush();
+					unsynced = true;
+				}
+				if (unsynced && (last || syncIntervalNanos > 0L && System.nanoTime() - lastSync >= syncIntervalNanos)) {
+					out.getChannel().force(false);
+					lastSync = System.nanoTime();
+					unsynced = false;
+				}
+			} catch (IOException | RuntimeException e) {
+				if (failure == null) {
+					failure = e instanceof IOException ? (IOException) e : new IOException(e.getMessage());
+					Log.error("Unable to write log " + logfilePath + ": " + e.getMessage());
 				}
-				line = br.readLine();
+				// discard records that cannot be written, so that producers do not wait forever
+				while (buffer.poll() != null) { }
+			}
+			if (last && buffer.isEmpty()) {
+				return;
+			}
+			if (count == 0) {
+				idle = true;
+				// check again, a record added before the flag was set has not woken the writer
+				if (buffer.isEmpty() && !closing) {
+					if (unsynced && syncIntervalNanos > 0L) {
+						// wake up in time for the next sync
+						LockSupport.parkNanos(this, Math.max(0L, lastSync + syncIntervalNanos - System.nanoTime()));
+					} else {
+						LockSupport.park(this);
+					}
+				}
+				idle = false;
 			}
-		} finally {
-			br.close();
 		}
-		return out;
 	}
-	
+
+	private void write(Entry e) throws IOException {
+		if (logfile == null) {
+			throw new IOException("log is not open");
+		}
+		if (tsv) {
+			logfile.write(e.dataId + "\t" + e.size + "\t" + TimeUnit.NANOSECONDS.toMillis(e.nanos) + "\t" + e.outcome + "\t" +
+					(e.rescName == null ? "" : e.rescName) + "\t" + escape(e.path) + "\t" + escape(e.message) + "\n");
+			return;
+		}
+		switch (e.outcome) {
+			case "REPLICATED":
+				logfile.write("OK REPLICATED " + e.path + "\n");
+				break;
+			case "TRIMMED":
+				logfile.write("OK " + "TRIMMED(" + e.rescName + ") " + e.path + "\n");
+				break;
+			case "VERIFIED":
+				logfile.write("OK " + "VERIFIED(" + e.rescName + ") " + e.path + "\n");
+				break;
+			default:
+				logfile.write("ERROR " + e.path + " : " + e.message + "\n");
+		}
+	}
+
+	private static String escape(String value) {
+		if (value == null) return "";
+		return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+	}
+
 }
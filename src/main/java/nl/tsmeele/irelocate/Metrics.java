@@ -0,0 +1,209 @@
+package nl.tsmeele.irelocate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import nl.tsmeele.log.Log;
+
+/**
+ * Exposes the run statistics while the run is in progress, via JMX and optionally via a
+ * local HTTP endpoint (/metrics) in the Prometheus text format.
+ */
+public class Metrics implements MetricsMXBean {
+	static final String OBJECT_NAME = "nl.tsmeele.irelocate:type=Metrics";
+	private static final String PREFIX = RelocateContext.PROGRAM_NAME + "_";
+	private RelocateStats stats;
+	private ObjectName objectName = null;
+	private HttpServer server = null;
+
+	public Metrics(RelocateStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server.
+	 */
+	public void registerMBean() {
+		try {
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName(OBJECT_NAME);
+			mbs.registerMBean(this, objectName);
+		} catch (JMException e) {
+			Log.warning("Unable to register the metrics with JMX: " + e.getMessage());
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Starts serving the metrics over HTTP, on the loopback interface only.
+	 * @param port  local port number
+	 */
+	public void startHttp(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", this::handle);
+		server.start();
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				// already gone
+			}
+			objectName = null;
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream os = exchange.getResponseBody();
+		try {
+			os.write(body);
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * @return the metrics in the Prometheus text exposition format
+	 */
+	public String prometheus() {
+		StringBuilder sb = new StringBuilder();
+		String outcomes = PREFIX + "objects_total";
+		sb.append("# HELP ").append(outcomes).append(" Data objects processed, by outcome.\n");
+		sb.append("# TYPE ").append(outcomes).append(" counter\n");
+		appendOutcome(sb, outcomes, "ok", stats.ok.sum());
+		appendOutcome(sb, outcomes, "replicated", stats.replicated.sum());
+		appendOutcome(sb, outcomes, "trimmed", stats.trimmed.sum());
+		appendOutcome(sb, outcomes, "error", stats.error.sum());
+		appendOutcome(sb, outcomes, "skipped", stats.skipped.sum());
+		String bytes = PREFIX + "replicated_bytes_total";
+		sb.append("# HELP ").append(bytes).append(" Bytes replicated.\n");
+		sb.append("# TYPE ").append(bytes).append(" counter\n");
+		sb.append(bytes).append(' ').append(stats.bytes.sum()).append('\n');
+		String checksums = PREFIX + "checksums_total";
+		sb.append("# HELP ").append(checksums).append(" Destination replicas checked by the checksum verification, by result.\n");
+		sb.append("# TYPE ").append(checksums).append(" counter\n");
+		sb.append(checksums).append("{result=\"verified\"} ").append(stats.verified.sum()).append('\n');
+		sb.append(checksums).append("{result=\"error\"} ").append(stats.checksumError.sum()).append('\n');
+		sb.append(checksums).append("{result=\"skipped\"} ").append(stats.checksumSkipped.sum()).append('\n');
+		String duration = PREFIX + "operation_duration_seconds";
+		sb.append("# HELP ").append(duration).append(" Duration of iRODS operations.\n");
+		sb.append("# TYPE ").append(duration).append(" histogram\n");
+		for (LatencyHistogram h : stats.histograms()) {
+			h.appendPrometheus(sb, duration);
+		}
+		return sb.toString();
+	}
+
+	private static void appendOutcome(StringBuilder sb, String metric, String outcome, long value) {
+		sb.append(metric).append("{outcome=\"").append(outcome).append("\"} ").append(value).append('\n');
+	}
+
+	private double secondsSinceStart() {
+		return Math.max(1e-9, (System.nanoTime() - stats.startNanos) / 1e9);
+	}
+
+	@Override
+	public long getObjects() {
+		return stats.objects.sum();
+	}
+
+	@Override
+	public long getOk() {
+		return stats.ok.sum();
+	}
+
+	@Override
+	public long getReplicated() {
+		return stats.replicated.sum();
+	}
+
+	@Override
+	public long getTrimmed() {
+		return stats.trimmed.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return stats.error.sum();
+	}
+
+	@Override
+	public long getSkipped() {
+		return stats.skipped.sum();
+	}
+
+	@Override
+	public long getBytes() {
+		return stats.bytes.sum();
+	}
+
+	@Override
+	public long getChecksumsVerified() {
+		return stats.verified.sum();
+	}
+
+	@Override
+	public long getChecksumErrors() {
+		return stats.checksumError.sum();
+	}
+
+	@Override
+	public double getObjectsPerSecond() {
+		return stats.objects.sum() / secondsSinceStart();
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return stats.bytes.sum() / secondsSinceStart();
+	}
+
+	@Override
+	public Map<String,Long> getOperationCounts() {
+		Map<String,Long> out = new LinkedHashMap<String,Long>();
+		for (LatencyHistogram h : stats.histograms()) {
+			out.put(h.name, h.count());
+		}
+		return out;
+	}
+
+	@Override
+	public Map<String,Double> getMeanLatencyMillis() {
+		Map<String,Double> out = new LinkedHashMap<String,Double>();
+		for (LatencyHistogram h : stats.histograms()) {
+			out.put(h.name, h.meanMillis());
+		}
+		return out;
+	}
+
+	@Override
+	public Map<String,Double> getP95LatencyMillis() {
+		Map<String,Double> out = new LinkedHashMap<String,Double>();
+		for (LatencyHistogram h : stats.histograms()) {
+			out.put(h.name, h.quantileMillis(0.95));
+		}
+		return out;
+	}
+
+}
@@ -0,0 +1,24 @@
+package nl.tsmeele.irelocate;
+
+import java.util.Map;
+
+/**
+ * Management interface of the run metrics, available via JMX as nl.tsmeele.irelocate:type=Metrics.
+ */
+public interface MetricsMXBean {
+	long getObjects();
+	long getOk();
+	long getReplicated();
+	long getTrimmed();
+	long getErrors();
+	long getSkipped();
+	long getBytes();
+	long getChecksumsVerified();
+	long getChecksumErrors();
+	double getObjectsPerSecond();
+	double getBytesPerSecond();
+	// per operation: number of calls, average and 95th percentile duration
+	Map<String,Long> getOperationCounts();
+	Map<String,Double> getMeanLatencyMillis();
+	Map<String,Double> getP95LatencyMillis();
+}
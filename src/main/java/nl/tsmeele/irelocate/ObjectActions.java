@@ -0,0 +1,352 @@
+package nl.tsmeele.irelocate;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.plumbing.MyRodsException;
+
+/**
+ * The steps to process data objects: lookup, verification and action.
+ * The steps can be executed one after another by a single thread, or by separate pipeline stages.
+ * Outcomes are counted in the run statistics.
+ */
+public class ObjectActions {
+
+	/**
+	 * Looks up the replicas of all data objects in a batch and checks the data files of the
+	 * good replicas needed to decide, using a single query and a rule execution per round.
+	 * @param ctx     run context
+	 * @param hirods  authenticated iRODS session
+	 * @param ids     references to the data objects, in ascending order
+	 * @param length  number of references
+	 * @return replicas of each data object, at the same index as its reference
+	 */
+	public static List<List<Replica>> lookupAndVerify(RelocateContext ctx, IrodsSession hirods, long[] ids, int length)
+			throws MyRodsException, IOException {
+		List<List<Replica>> replicasPerObject = lookup(ctx, hirods, ids, length);
+		verify(ctx, hirods, replicasPerObject);
+		return replicasPerObject;
+	}
+
+	public static List<List<Replica>> lookup(RelocateContext ctx, IrodsSession hirods, long[] ids, int length)
+			throws MyRodsException, IOException {
+		throttle(ctx, 0L);
+		long start = System.nanoTime();
+		List<List<Replica>> replicasPerObject = IrodsQuery.getReplicas(hirods, ids, length);
+		ctx.stats.getReplicas.record(System.nanoTime() - start);
+		ctx.stats.lookupItems.add(length);
+		return replicasPerObject;
+	}
+
+	/**
+	 * Checks the data files of the good replicas of a batch of data objects, only as far as needed
+	 * to decide. The checks are done in rounds, each round checks the replicas of all data objects
+	 * of the batch that are still undecided using a single rule execution:
+	 *   - first the replicas on the destination (and nearby) resources, a perfect one settles the object
+	 *   - then the other replicas one at a time, local ones first, until a perfect source is found
+	 * If a host limit applies, all other replicas are checked in the second round, so that the
+	 * limiter can choose between all perfect sources.
+	 * Replicas that have not been checked keep a data file status of null.
+	 * In trim and move mode a perfect replica on the destination (or nearby) resources leads to a trim,
+	 * these replicas are therefore always checked on the server rather than taken from the stat cache.
+	 * @param ctx                run context
+	 * @param hirods             authenticated iRODS session
+	 * @param replicasPerObject  replicas of the data objects
+	 */
+	public static void verify(RelocateContext ctx, IrodsSession hirods, List<List<Replica>> replicasPerObject)
+			throws MyRodsException, IOException {
+		List<Replica> round = new ArrayList<Replica>();
+		// per data object: the replicas that may serve as source, in order of preference
+		List<List<Replica>> sources = new ArrayList<List<Replica>>(replicasPerObject.size());
+		for (List<Replica> replicas : replicasPerObject) {
+			List<Replica> candidates = new ArrayList<Replica>();
+			int local = 0;
+			for (Replica r : replicas) {
+				if (!r.isGood()) continue;
+				int role = ctx.decisionEngine.roleOf(r.dataRescName);
+				if ((role & (DecisionEngine.DESTINATION | DecisionEngine.NEARBY)) != 0) {
+					round.add(r);
+				} else if ((role & DecisionEngine.LOCAL) != 0) {
+					candidates.add(local++, r);
+				} else {
+					candidates.add(r);
+				}
+			}
+			sources.add(candidates);
+		}
+		boolean allSources = ctx.hostLimiter != null;
+		boolean cached = !ctx.trim && !ctx.move;
+		int next = 0;
+		while (true) {
+			retrieveDatafileStatus(ctx, hirods, round, cached);
+			cached = true;
+			round = new ArrayList<Replica>();
+			for (int i = 0; i < sources.size(); i++) {
+				List<Replica> candidates = sources.get(i);
+				if (next >= candidates.size() || hasPerfect(replicasPerObject.get(i))) continue;
+				if (allSources) {
+					round.addAll(candidates);
+				} else {
+					round.add(candidates.get(next));
+				}
+			}
+			if (round.isEmpty()) break;
+			next = allSources ? Integer.MAX_VALUE : next + 1;
+		}
+	}
+
+	private static boolean hasPerfect(List<Replica> replicas) {
+		for (Replica r : replicas) {
+			if (r.datafileStatus != null && r.datafileStatus == 1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks the data files of replicas, the result is stored in each replica.
+	 * @param cached  true if replicas found perfect by an earlier check may be taken from the stat cache,
+	 *                false if the outcome decides a trim. The cache is not used if a recheck has been requested.
+	 */
+	static void retrieveDatafileStatus(RelocateContext ctx, IrodsSession hirods, List<Replica> replicas, boolean cached)
+			throws MyRodsException, IOException {
+		List<Replica> toCheck = replicas;
+		if (cached && ctx.statCache != null && !ctx.recheck) {
+			toCheck = new ArrayList<Replica>(replicas.size());
+			for (Replica r : replicas) {
+				if (ctx.statCache.isPerfect(r)) {
+					r.datafileStatus = 1;
+					ctx.stats.statCacheHits.increment();
+				} else {
+					toCheck.add(r);
+				}
+			}
+		}
+		if (toCheck.isEmpty()) {
+			return;
+		}
+		throttle(ctx, 0L);
+		long start = System.nanoTime();
+		Replica.retrieveDatafileStatus(hirods, toCheck);
+		ctx.stats.datafileStatus.record(System.nanoTime() - start);
+		ctx.stats.lookupItems.add(toCheck.size());
+		if (ctx.statCache != null) {
+			for (Replica r : toCheck) {
+				if (r.datafileStatus == 1) {
+					ctx.statCache.putPerfect(r);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param decision  action decided for a data object
+	 * @return true if the action requires an iRODS session
+	 */
+	public static boolean needsSession(DecisionEngine.Decision decision) {
+		return decision.action == DecisionEngine.Action.REPLICATE || decision.action == DecisionEngine.Action.TRIM ||
+				decision.action == DecisionEngine.Action.MOVE;
+	}
+
+	/**
+	 * Carries out the action decided for a data object.
+	 * @param ctx        run context
+	 * @param hirods     authenticated iRODS session, may be null if the action does not need a session
+	 * @param dataObjId  reference to the data object
+	 * @param replicas   all replicas that belong to the data object
+	 * @param decision   action decided for the data object
+	 * @return true if the data object is done, false if it has an error and should be processed again by a resumed run
+	 */
+	public static boolean execute(RelocateContext ctx, IrodsSession hirods, long dataObjId, List<Replica> replicas,
+			DecisionEngine.Decision decision) throws MyRodsException, IOException {
+		RelocateStats stats = ctx.stats;
+		String path = replicas.isEmpty() ? null : replicas.get(0).path;
+		boolean done = false;
+		switch (decision.action) {
+			case SKIP:
+				Log.debug("Skipping intermediate object " + dataObjId);
+				stats.skipped.increment();
+				done = true;
+				break;
+			case ERROR_NO_PERFECT:
+				ctx.log.logError(dataObjId, 0L, 0L, path, "Object lacks a perfect replica");
+				if (ctx.verbose) {
+					Log.info("ERROR, lacks perfect replica: " + path);
+				}
+				stats.error.increment();
+				break;
+			case ERROR_NO_DESTINATION:
+				// unable to trim because destination does not yet have a perfect replica
+				Log.debug("Object lacks perfect replica at destination: " + path);
+				stats.error.increment();
+				break;
+			case OK:
+				// no replicas to trim or perfect replica already exists on destination
+				Log.info("OK: " + path);
+				stats.ok.increment();
+				done = true;
+				break;
+			case TRIM:
+				done = trimAction(ctx, hirods, dataObjId, decision.trim, path);
+				break;
+			case REPLICATE:
+				done = replicate(ctx, hirods, dataObjId, decision, path) != null;
+				break;
+			case MOVE:
+				Replica source = replicate(ctx, hirods, dataObjId, decision, path);
+				done = source != null && moveAction(ctx, hirods, dataObjId, source, path);
+				break;
+		}
+		stats.objects.increment();
+		return done;
+	}
+
+	/**
+	 * Replicates the data object, using the source host chosen by the host limiter if there is one.
+	 * @return the source replica if the replication succeeded, otherwise null
+	 */
+	private static Replica replicate(RelocateContext ctx, IrodsSession hirods, long dataObjId, DecisionEngine.Decision decision,
+			String path) throws MyRodsException, IOException {
+		if (ctx.hostLimiter == null) {
+			return replicateAction(ctx, hirods, dataObjId, decision.source, path) ? decision.source : null;
+		}
+		Replica source;
+		try {
+			source = ctx.hostLimiter.acquire(decision);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a storage host");
+		}
+		try {
+			return replicateAction(ctx, hirods, dataObjId, source, path) ? source : null;
+		} finally {
+			ctx.hostLimiter.release(source);
+		}
+	}
+
+	/**
+	 * Second half of a move: looks up the replicas again, checks the data file of the new destination
+	 * replica and trims the replicas on source resources only if the new replica is perfect.
+	 * If checksums are verified, the checksum of the new replica must match that of the source as well.
+	 * @param source  source replica of the replication
+	 * @return true if the source replicas have been trimmed
+	 */
+	private static boolean moveAction(RelocateContext ctx, IrodsSession hirods, long dataObjId, Replica source, String path)
+			throws MyRodsException, IOException {
+		List<Replica> replicas = lookup(ctx, hirods, new long[] { dataObjId }, 1).get(0);
+		List<Replica> atDestination = new ArrayList<Replica>();
+		List<Replica> onSourceResource = new ArrayList<Replica>();
+		for (Replica r : replicas) {
+			int role = ctx.decisionEngine.roleOf(r.dataRescName);
+			if (r.isGood() && (role & DecisionEngine.DESTINATION) != 0) {
+				atDestination.add(r);
+			}
+			if ((r.isGood() || r.isStale()) && (role & DecisionEngine.SOURCE) != 0) {
+				onSourceResource.add(r);
+			}
+		}
+		Replica perfect = null;
+		if (!atDestination.isEmpty()) {
+			retrieveDatafileStatus(ctx, hirods, atDestination, false);
+			for (Replica r : atDestination) {
+				if (r.datafileStatus == 1) {
+					perfect = r;
+				}
+			}
+		}
+		if (perfect == null) {
+			ctx.log.logError(dataObjId, 0L, 0L, path, "Source replicas not trimmed, new replica at destination is not perfect");
+			Log.info("ERROR, new replica not perfect, not trimmed: " + path);
+			ctx.stats.error.increment();
+			return false;
+		}
+		// the source replicas are about to disappear, so the verification cannot wait for the background
+		if (ctx.checksums != null && !ctx.checksums.verifyNow(hirods, dataObjId, source, perfect)) {
+			Log.info("ERROR, checksum of new replica not verified, not trimmed: " + path);
+			ctx.stats.error.increment();
+			return false;
+		}
+		return onSourceResource.isEmpty() || trimAction(ctx, hirods, dataObjId, onSourceResource, path);
+	}
+
+	/**
+	 * Waits until the configured rate limits allow an iRODS operation.
+	 * @param bytes  number of bytes that the operation replicates
+	 */
+	private static void throttle(RelocateContext ctx, long bytes) throws InterruptedIOException {
+		if (ctx.throttle == null) return;
+		try {
+			if (bytes > 0L) {
+				ctx.throttle.replicate(bytes);
+			}
+			ctx.throttle.operation();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+		}
+	}
+
+	private static boolean replicateAction(RelocateContext ctx, IrodsSession hirods, long dataObjId, Replica perfect, String path)
+			throws MyRodsException, IOException {
+		Log.debug("...replicating: " + path);
+		throttle(ctx, perfect.size());
+		long start = System.nanoTime();
+		boolean replicated = perfect.replicate(hirods, ctx.destinationResource, false);
+		long nanos = System.nanoTime() - start;
+		ctx.stats.replicate.record(nanos);
+		if (replicated) {
+			Log.info("REPLICATED OK: " + path);
+			ctx.log.logDone(dataObjId, perfect.size(), nanos, path);
+			ctx.stats.replicated.increment();
+			ctx.stats.bytes.add(perfect.size());
+			if (ctx.checksums != null && !ctx.move) {
+				ctx.checksums.submit(dataObjId, perfect);
+			}
+			return true;
+		} else {
+			ctx.log.logError(dataObjId, perfect.size(), nanos, path, "Replication failed. iRODS error = " + hirods.intInfo());
+			Log.info("ERROR, replication failed (" + hirods.intInfo() + "): " + path);
+			ctx.stats.error.increment();
+			ctx.stats.failures.increment();
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if all replicas have been trimmed
+	 */
+	private static boolean trimAction(RelocateContext ctx, IrodsSession hirods, long dataObjId, List<Replica> onSourceResource, String path)
+			throws MyRodsException, IOException {
+		Log.debug("...trimming: " + path);
+		ArrayList<String> trimErrors = new ArrayList<String>();
+		long totalNanos = 0L;
+		for (Replica r : onSourceResource) {
+			throttle(ctx, 0L);
+			long start = System.nanoTime();
+			boolean trimmed = r.trim(hirods);
+			long nanos = System.nanoTime() - start;
+			ctx.stats.trim.record(nanos);
+			totalNanos += nanos;
+			if (trimmed) {
+				Log.info("TRIMMED ON " + r.dataRescName + ": " + path);
+				ctx.log.logTrimmed(dataObjId, r.size(), nanos, path, r.dataRescName);
+			} else {
+				Log.info("ERROR, trim failed (" + hirods.intInfo() + ") for resource: " + r.dataRescName  + "  path: " + path);
+				trimErrors.add(r.dataRescName);
+				ctx.stats.failures.increment();
+			}
+		}
+		if (!trimErrors.isEmpty()) {
+			ctx.log.logError(dataObjId, 0L, totalNanos, path, "Unable to trim replica on resource(s): " + trimErrors.toString());
+			ctx.stats.error.increment();
+			return false;
+		}
+		ctx.stats.trimmed.increment();
+		return true;
+	}
+
+}
@@ -0,0 +1,385 @@
+package nl.tsmeele.irelocate;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.tsmeele.log.Log;
+
+/**
+ * Processes data objects in three stages, each with its own number of threads:
+ *   - lookup: queries the replicas of a block of data objects
+ *   - verify: checks the data files of the good replicas and decides on the action
+ *   - act:    replicates or trims, the only stage that moves data
+ * The stages are connected by bounded queues, so that a slow stage holds back the stages before it.
+ * A range of data ids is marked done in the checkpoint once the last action of its block has completed,
+ * unless an action of the block has failed.
+ */
+public class Pipeline {
+	static final int DATA_OBJECTS_PER_PROGRESS_REPORT = 5000;
+	static final int MAX_ATTEMPTS = 2;
+	private static final long POLL_INTERVAL_MILLIS = 100L;
+	// capacity of the queues between the stages, expressed in entries per consuming thread
+	private static final int QUEUED_BATCHES_PER_THREAD = 2;
+	private static final int QUEUED_ACTIONS_PER_THREAD = 16;
+	// actions an act thread can set aside while it looks for an action on a less busy host
+	private static final int MAX_DEFERRED_ACTIONS = 8;
+
+	private RelocateContext ctx;
+	private WorkQueue queue;
+	private SessionPool pool;
+	private int lookupThreads, verifyThreads, actThreads;
+	private BlockingQueue<Batch> verifyQueue;
+	private BlockingQueue<Action> actQueue;
+	// number of threads of a stage that still run, a stage stops once the stage before it has stopped
+	private AtomicInteger lookupsAlive = new AtomicInteger();
+	private AtomicInteger verifiersAlive = new AtomicInteger();
+	private AtomicLong lookedUp = new AtomicLong();
+	private volatile boolean failed = false;
+
+	/**
+	 * Data objects of a block from the work queue, handed from the lookup to the verify stage.
+	 */
+	private class Batch {
+		final long[] ids;
+		final int length;
+		// a large object block is kept until the batch is done, to cap the number of large objects in progress
+		final WorkQueue.Block block;
+		final WorkQueue.Range range;
+		List<List<Replica>> replicasPerObject;
+		// objects with an outstanding action, plus one while the batch is being verified
+		final AtomicInteger pending;
+		// true if objects of the batch failed or have been given up on, its range is then not marked done
+		volatile boolean incomplete = false;
+
+		Batch(WorkQueue.Block block) {
+			ids = Arrays.copyOf(block.ids, block.length);
+			length = block.length;
+			this.block = block;
+			range = block.range;
+			pending = new AtomicInteger(length + 1);
+		}
+
+		void done(int objects) {
+			if (pending.addAndGet(-objects) == 0) {
+				if (!incomplete && range.complete()) {
+					ctx.checkpoint.markDone(range.from, range.to);
+				}
+				if (block.isLarge()) {
+					queue.release(block);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replicate or trim action of a data object, handed from the verify to the act stage.
+	 */
+	private static class Action {
+		final Batch batch;
+		final int index;
+		final DecisionEngine.Decision decision;
+
+		Action(Batch batch, int index, DecisionEngine.Decision decision) {
+			this.batch = batch;
+			this.index = index;
+			this.decision = decision;
+		}
+	}
+
+	/**
+	 * @param ctx            run context
+	 * @param queue          queue with the data objects to process
+	 * @param pool           sessions shared by all stages
+	 * @param lookupThreads  number of threads of the lookup stage
+	 * @param verifyThreads  number of threads of the verify stage
+	 * @param actThreads     number of threads of the act stage
+	 */
+	public Pipeline(RelocateContext ctx, WorkQueue queue, SessionPool pool, int lookupThreads, int verifyThreads, int actThreads) {
+		this.ctx = ctx;
+		this.queue = queue;
+		this.pool = pool;
+		this.lookupThreads = lookupThreads;
+		this.verifyThreads = verifyThreads;
+		this.actThreads = actThreads;
+		verifyQueue = new ArrayBlockingQueue<Batch>(verifyThreads * QUEUED_BATCHES_PER_THREAD);
+		actQueue = new ArrayBlockingQueue<Action>(actThreads * QUEUED_ACTIONS_PER_THREAD);
+	}
+
+	/**
+	 * Creates and starts the threads of all stages.
+	 * @param virtual  true to use virtual threads
+	 * @return the started threads
+	 */
+	public List<Thread> start(boolean virtual) {
+		List<Thread> threads = new ArrayList<Thread>();
+		lookupsAlive.set(lookupThreads);
+		verifiersAlive.set(verifyThreads);
+		for (int i = 0; i < lookupThreads; i++) {
+			threads.add(WorkerThreads.newThread(this::lookupStage, "Lookup-" + i, virtual));
+		}
+		for (int i = 0; i < verifyThreads; i++) {
+			threads.add(WorkerThreads.newThread(this::verifyStage, "Verify-" + i, virtual));
+		}
+		for (int i = 0; i < actThreads; i++) {
+			threads.add(WorkerThreads.newThread(this::actStage, "Act-" + i, virtual));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		return threads;
+	}
+
+	private void lookupStage() {
+		try {
+			WorkQueue.Block block;
+			while (!failed && (block = queue.claim()) != null) {
+				Batch batch = new Batch(block);
+				if (!block.isLarge()) {
+					// ids have been copied, the range is completed through the batch
+					queue.release(block);
+				}
+				long count = lookedUp.getAndAdd(batch.length);
+				// report progress (independent of log level)
+				if (count / DATA_OBJECTS_PER_PROGRESS_REPORT != (count + batch.length) / DATA_OBJECTS_PER_PROGRESS_REPORT) {
+					System.out.println("Pipeline progress: looking up data object " + batch.ids[0]);
+				}
+				if (batch.length == 0) {
+					// the range only holds large objects, which are processed separately
+					batch.done(1);
+					continue;
+				}
+				lookup(batch);
+				if (batch.replicasPerObject == null) {
+					continue;
+				}
+				while (!verifyQueue.offer(batch, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+					if (failed) return;
+				}
+			}
+		} catch (InterruptedException e) {
+			failed = true;
+		} finally {
+			lookupsAlive.decrementAndGet();
+		}
+	}
+
+	private void verifyStage() {
+		try {
+			while (!failed) {
+				// read stage state before polling to avoid missing the last batches
+				boolean lastRound = lookupsAlive.get() == 0;
+				Batch batch = verifyQueue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				if (batch == null) {
+					if (lastRound) break;
+					continue;
+				}
+				if (!verify(batch)) {
+					continue;
+				}
+				int inline = 1;
+				for (int i = 0; i < batch.length; i++) {
+					List<Replica> replicas = batch.replicasPerObject.get(i);
+					DecisionEngine.Decision decision = ctx.decisionEngine.decide(replicas);
+					if (ObjectActions.needsSession(decision)) {
+						Action action = new Action(batch, i, decision);
+						while (!actQueue.offer(action, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+							if (failed) return;
+						}
+					} else {
+						try {
+							if (!ObjectActions.execute(ctx, null, batch.ids[i], replicas, decision)) {
+								batch.incomplete = true;
+							}
+						} catch (IOException e) {
+							// outcomes without action do not use a session, the outcome could not be logged
+							Log.error("Unable to record the outcome of data object " + batch.ids[i] + ", stopping: " + e.getMessage());
+							batch.incomplete = true;
+							failed = true;
+							return;
+						}
+						inline++;
+					}
+				}
+				batch.done(inline);
+			}
+		} catch (InterruptedException e) {
+			failed = true;
+		} finally {
+			verifiersAlive.decrementAndGet();
+		}
+	}
+
+	private void actStage() {
+		// actions set aside because their storage hosts were busy
+		ArrayDeque<Action> deferred = new ArrayDeque<Action>();
+		try {
+			while (!failed) {
+				Action action = nextDeferred(deferred);
+				if (action == null) {
+					boolean lastRound = verifiersAlive.get() == 0;
+					action = actQueue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+					if (action != null && ctx.hostLimiter != null && deferred.size() < MAX_DEFERRED_ACTIONS &&
+							!ctx.hostLimiter.isAvailable(action.decision)) {
+						deferred.add(action);
+						continue;
+					}
+					if (action == null) {
+						// wait for a busy host if nothing else can be done
+						action = deferred.poll();
+					}
+					if (action == null) {
+						if (lastRound) break;
+						continue;
+					}
+				}
+				if (ctx.concurrency != null) {
+					ctx.concurrency.acquire();
+				}
+				try {
+					if (act(action)) {
+						action.batch.done(1);
+					}
+				} finally {
+					if (ctx.concurrency != null) {
+						ctx.concurrency.release();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			failed = true;
+		}
+	}
+
+	/**
+	 * @return a deferred action that can start without waiting for a busy host, or null
+	 */
+	private Action nextDeferred(ArrayDeque<Action> deferred) {
+		Iterator<Action> it = deferred.iterator();
+		while (it.hasNext()) {
+			Action action = it.next();
+			if (ctx.hostLimiter.isAvailable(action.decision)) {
+				it.remove();
+				return action;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Looks up the replicas of a batch, the replicas are null if the lookup failed.
+	 */
+	private void lookup(Batch batch) {
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			IrodsSession hirods = borrow();
+			if (hirods == null) return;
+			try {
+				batch.replicasPerObject = ObjectActions.lookup(ctx, hirods, batch.ids, batch.length);
+				pool.release(hirods, 0);
+				return;
+			} catch (IOException e) {
+				pool.invalidate(hirods);
+				if (!retry(attempt, batch, e)) return;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the data files of the batch have been checked
+	 */
+	private boolean verify(Batch batch) {
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			IrodsSession hirods = borrow();
+			if (hirods == null) return false;
+			try {
+				ObjectActions.verify(ctx, hirods, batch.replicasPerObject);
+				pool.release(hirods, 0);
+				return true;
+			} catch (IOException e) {
+				pool.invalidate(hirods);
+				if (!retry(attempt, batch, e)) return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return false if the action could not be carried out because no session could be obtained
+	 */
+	private boolean act(Action action) {
+		Batch batch = action.batch;
+		long dataId = batch.ids[action.index];
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			IrodsSession hirods = borrow();
+			if (hirods == null) return false;
+			try {
+				if (!ObjectActions.execute(ctx, hirods, dataId, batch.replicasPerObject.get(action.index), action.decision)) {
+					batch.incomplete = true;
+				}
+				pool.release(hirods, 1);
+				return true;
+			} catch (IOException e) {
+				pool.invalidate(hirods);
+				if (attempt >= MAX_ATTEMPTS) {
+					Log.error("IOException while processing data object " + dataId + ", skipped: " + e.getMessage());
+					ctx.stats.error.increment();
+					ctx.stats.objects.increment();
+					logSkipped(dataId, "Not processed, IOException: " + e.getMessage());
+					batch.incomplete = true;
+				} else {
+					Log.warning("IOException while processing data object, retrying with a new session: " + e.getMessage());
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Handles an IOException of the lookup or verify stage. After the last attempt all objects of the batch
+	 * are counted as error and logged as not processed, and the batch is done without marking its range.
+	 * @return true if the batch should be retried
+	 */
+	private boolean retry(int attempt, Batch batch, IOException e) {
+		if (attempt < MAX_ATTEMPTS) {
+			Log.warning("IOException while processing data objects, retrying with a new session: " + e.getMessage());
+			return true;
+		}
+		Log.error("IOException while processing data objects " + batch.ids[0] + ".." + batch.ids[batch.length - 1] +
+				", skipped: " + e.getMessage());
+		ctx.stats.error.add(batch.length);
+		ctx.stats.objects.add(batch.length);
+		for (int i = 0; i < batch.length; i++) {
+			logSkipped(batch.ids[i], "Not processed, IOException: " + e.getMessage());
+		}
+		batch.incomplete = true;
+		batch.done(batch.length + 1);
+		return false;
+	}
+
+	private void logSkipped(long dataId, String message) {
+		try {
+			// the path is not known, the text format identifies the object by its data id
+			ctx.log.logError(dataId, 0L, 0L, "DATA_ID=" + dataId, message);
+		} catch (IOException e) {
+			Log.error("Unable to write to the log: " + e.getMessage());
+		}
+	}
+
+	private IrodsSession borrow() {
+		IrodsSession hirods = pool.borrow();
+		if (hirods == null) {
+			Log.error("Unable to obtain an iRODS session while processing data objects");
+			failed = true;
+		}
+		return hirods;
+	}
+
+}
@@ -0,0 +1,143 @@
+package nl.tsmeele.irelocate;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nl.tsmeele.myrods.plumbing.MyRodsException;
+
+/**
+ * Reports the amount of work of a run without enumerating the data objects: aggregate queries
+ * provide the number and size of the replicas per source resource, and a small sample of data
+ * objects provides an estimate of the part that already has a good replica at the destination.
+ */
+public class Planner {
+	// number of data objects sampled, fits in a single replica query
+	static final int SAMPLE_SIZE = 200;
+
+	/**
+	 * Prints the planning report.
+	 * @param ctx     run context, with the resources and decision engine set up
+	 * @param hirods  authenticated iRODS session
+	 */
+	public static void report(RelocateContext ctx, IrodsSession hirods) throws MyRodsException, IOException {
+		Map<String,long[]> perResource = IrodsQuery.replicaTotalsPerResource(hirods, ctx.sourceList, ctx.startDataId);
+		if (perResource.isEmpty()) {
+			System.out.println("PLAN: no data objects found on the selected source resources and data object range.");
+			return;
+		}
+		System.out.println("PLAN: replicas on source resources" +
+				(ctx.startDataId != 0L ? " (DATA_ID >= " + ctx.startDataId + ")" : "") + ":");
+		System.out.println(String.format("  %-30s %-30s %14s %12s", "resource", "host", "replicas", "size"));
+		Map<String,long[]> perHost = new TreeMap<String,long[]>();
+		long replicas = 0L;
+		long bytes = 0L;
+		for (Map.Entry<String,long[]> e : perResource.entrySet()) {
+			Resource resc = ctx.rescList.get(e.getKey());
+			String host = resc == null ? "?" : resc.loc;
+			long[] totals = e.getValue();
+			System.out.println(String.format("  %-30s %-30s %14d %12s", e.getKey(), host, totals[0], formatBytes(totals[1])));
+			long[] hostTotals = perHost.computeIfAbsent(host, k -> new long[2]);
+			hostTotals[0] += totals[0];
+			hostTotals[1] += totals[1];
+			replicas += totals[0];
+			bytes += totals[1];
+		}
+		System.out.println("PLAN: replicas per source host:");
+		for (Map.Entry<String,long[]> e : perHost.entrySet()) {
+			System.out.println(String.format("  %-61s %14d %12s", e.getKey(), e.getValue()[0], formatBytes(e.getValue()[1])));
+		}
+		System.out.println(String.format("  %-61s %14d %12s", "total", replicas, formatBytes(bytes)));
+
+		// sample data objects to estimate their replicas on sources and at the destination
+		long[] range = IrodsQuery.dataIdRange(hirods, ctx.sourceList, ctx.startDataId);
+		long[] sample = IrodsQuery.sampleDataIds(hirods, ctx.sourceList, range[0], range[1], SAMPLE_SIZE);
+		long start = System.nanoTime();
+		List<List<Replica>> sampled = IrodsQuery.getReplicas(hirods, sample, sample.length);
+		double lookupSeconds = (System.nanoTime() - start) / 1e9;
+		long sourceReplicas = 0L;
+		long atDestination = 0L;
+		long sampleBytes = 0L;
+		long sampleBytesAtDestination = 0L;
+		for (List<Replica> objReplicas : sampled) {
+			boolean present = false;
+			long size = 0L;
+			for (Replica r : objReplicas) {
+				int role = ctx.decisionEngine.roleOf(r.dataRescName);
+				if ((role & DecisionEngine.SOURCE) != 0) {
+					sourceReplicas++;
+					size = Math.max(size, r.size());
+				}
+				if (r.isGood() && (role & (DecisionEngine.DESTINATION | DecisionEngine.NEARBY)) != 0) {
+					present = true;
+				}
+			}
+			sampleBytes += size;
+			if (present) {
+				atDestination++;
+				sampleBytesAtDestination += size;
+			}
+		}
+		if (sample.length == 0 || sourceReplicas == 0L) {
+			System.out.println("PLAN: unable to sample data objects, no estimates available.");
+			return;
+		}
+		// objects with replicas on multiple source resources are counted once
+		double replicasPerObject = (double) sourceReplicas / sample.length;
+		long objects = Math.round(replicas / replicasPerObject);
+		long objectBytes = Math.round(bytes / replicasPerObject);
+		double presentFraction = (double) atDestination / sample.length;
+		double presentBytesFraction = sampleBytes == 0L ? presentFraction : (double) sampleBytesAtDestination / sampleBytes;
+		System.out.println(String.format("PLAN: estimated %d data objects (%s), based on a sample of %d data objects",
+				objects, formatBytes(objectBytes), sample.length));
+		System.out.println(String.format("      %.1f%% of the sampled data objects already have a good replica at the destination " +
+				"(catalog state, data files not checked)", presentFraction * 100.0));
+
+		long actions;
+		long transferBytes;
+		if (ctx.trim) {
+			actions = Math.round(objects * presentFraction);
+			transferBytes = 0L;
+			System.out.println(String.format("PLAN: about %d data objects to trim", actions));
+		} else {
+			actions = Math.round(objects * (1.0 - presentFraction));
+			transferBytes = Math.round(objectBytes * (1.0 - presentBytesFraction));
+			System.out.println(String.format("PLAN: about %d data objects (%s) to replicate", actions, formatBytes(transferBytes)) +
+					(ctx.move ? String.format(", then trim the source replicas of about %d data objects", objects) : ""));
+		}
+
+		// project the run time from the measured catalog lookups and the expected transfer rate
+		int threads = Math.max(1, ctx.threads);
+		double lookupRate = lookupSeconds > 0.0 ? sample.length / lookupSeconds * threads : 0.0;
+		long byteRate = ctx.planRate;
+		if (byteRate == 0L && ctx.throttle != null) {
+			byteRate = ctx.throttle.bytesPerSecond();
+		}
+		double seconds = lookupRate > 0.0 ? objects / lookupRate : 0.0;
+		if (transferBytes > 0L && byteRate > 0L) {
+			seconds = Math.max(seconds, (double) transferBytes / byteRate);
+		}
+		System.out.println(String.format("PLAN: catalog lookups measured at %.0f data objects/s using %d threads", lookupRate, threads) +
+				(byteRate > 0L ? ", transfers expected at " + formatBytes(byteRate) + "/s" : ""));
+		System.out.println("PLAN: projected run time at least " + formatDuration(seconds) +
+				(transferBytes > 0L && byteRate == 0L ? " excluding data transfers (use -planRate to specify a transfer rate)" : ""));
+	}
+
+	static String formatBytes(long bytes) {
+		String[] units = { "B", "KiB", "MiB", "GiB", "TiB", "PiB" };
+		double value = bytes;
+		int unit = 0;
+		while (value >= 1024.0 && unit < units.length - 1) {
+			value /= 1024.0;
+			unit++;
+		}
+		return unit == 0 ? bytes + " B" : String.format("%.1f %s", value, units[unit]);
+	}
+
+	static String formatDuration(double seconds) {
+		long s = Math.round(seconds);
+		return String.format("%dd %02dh %02dm %02ds", s / 86400, s / 3600 % 24, s / 60 % 60, s % 60);
+	}
+
+}
@@ -1,6 +1,7 @@
 package nl.tsmeele.irelocate;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,8 +13,16 @@ public class RelocateContext {
 	public static final String PROGRAM_NAME = "irelocate";
 	private static final String[] REQUIRED_KEYWORDS = {
 			"host","port","username","zone","password", "auth_scheme", "destinationResource"};
+	private static final String[] OPTIONAL_KEYWORDS = {
+			"sourceResources", "startDataId", "bytesPerSecond", "opsPerSecond", "throttleHours",
+			"offHoursBytesPerSecond", "offHoursOpsPerSecond"};
 	private static final String CONFIG_FILE = PROGRAM_NAME + ".ini";
 	private static final String LOG_FILE = PROGRAM_NAME + ".log";
+	private static final String CHECKPOINT_FILE = PROGRAM_NAME + ".checkpoint";
+	// upper limit keeps the 'in (...)' condition of the replica query within server limits
+	public static final int MAX_BATCH_SIZE = 500;
+	// default number of iRODS sessions shared by virtual threads
+	public static final int VIRTUAL_SESSIONS = 32;
 	
 	// commandline info that can be queried after processing:
 	public HashMap<String,String> options = new HashMap<String,String>();
@@ -28,18 +37,53 @@ public class RelocateContext {
 	public boolean verbose = false;
 	public boolean debug = false;
 	public boolean resume = false;
-	public String resumeFile = LOG_FILE;
+	public String resumeFile = CHECKPOINT_FILE;
+	public String statCacheFile = null;	// null means no stat cache
+	public boolean recheck = false;
 	public String logFile = LOG_FILE;
+	public boolean logTsv = false;
+	public long logSyncMillis = 0L;	// 0 means no explicit sync to disk
 	public int threads = 1;
+	public int batchSize = 64;
+	public int sessions = 0;	// 0 means one session per thread, at most VIRTUAL_SESSIONS for virtual threads
+	public int partitions = 1;
+	public boolean virtual = false;
+	public long largeSize = 1024L * 1024L * 1024L;
+	public int largeThreads = 0;	// 0 means half of the threads
+	public boolean pipeline = false;
+	public boolean adaptive = false;
+	public int hostLimit = 0;	// 0 means no limit
+	public int metricsPort = 0;	// 0 means no HTTP endpoint
+	public int lookupThreads = 1;
+	public int verifyThreads = 2;
 	public boolean trim = false;
+	public boolean move = false;
+	public boolean antijoin = false;
 	public boolean nearby = false;
 	public boolean dryrun = false;
+	public boolean plan = false;
+	public long planRate = 0L;	// 0 means not specified
+	public boolean checksum = false;
+	public boolean noChecksum = false;
+	public int checksumThreads = 1;
+	public long checksumRate = 0L;	// 0 means no limit
 	public boolean usage = false;
 	
 	// information added during session by RelocateMain, after connections have been established
 	public IrodsResources rescList = null;
 	public LogFile log = null;
+	public Checkpoint checkpoint = null;
 	public List<Resource> otherDestinationResources = null;
+	public DecisionEngine decisionEngine = null;
+	public RelocateStats stats = new RelocateStats();
+	public ConcurrencyController concurrency = null;
+	public Throttle throttle = null;
+	public HostLimiter hostLimiter = null;
+	public ChecksumVerifier checksums = null;
+	public StatCache statCache = null;
+	public List<String> joinResources = null;
+	// opens the sessions with the iRODS server
+	public IrodsSession.Factory sessionFactory = HirodsSession::new;
 	
 	
 	public void processArgs(String[] args) throws MyRodsException {
@@ -62,6 +106,22 @@ public class RelocateContext {
 					dryrun = true;
 					break;
 				}
+				case "-plan": {
+					plan = true;
+					break;
+				}
+				case "-planrate": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							planRate = parseSize(args[argIndex]);
+							if (planRate < 0L) planRate = 0L;
+						} catch (NumberFormatException e) { 
+							/* keep default in case of parse error */ 
+						}
+					}
+					break;
+				}
 				case "-v":
 				case "-verbose": {
 					verbose = true;
@@ -88,6 +148,53 @@ public class RelocateContext {
 					}
 					break;
 				}
+				case "-logformat": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						String format = args[argIndex].toLowerCase();
+						if (format.equals("tsv")) {
+							logTsv = true;
+						} else if (!format.equals("text")) {
+							usage = true;
+						}
+					}
+					break;
+				}
+				case "-logsync": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							logSyncMillis = Long.valueOf(args[argIndex]);
+							if (logSyncMillis < 0L) logSyncMillis = 0L;
+						} catch (NumberFormatException e) { 
+							/* keep default in case of parse error */ 
+						}
+					}
+					break;
+				}
+				case "-r":
+				case "-resume": {
+					resume = true;
+					break;
+				}
+				case "-checkpoint": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						resumeFile = args[argIndex];
+					}
+					break;
+				}
+				case "-statcache": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						statCacheFile = args[argIndex].equalsIgnoreCase("none") ? null : args[argIndex];
+					}
+					break;
+				}
+				case "-recheck": {
+					recheck = true;
+					break;
+				}
 				case "-s":
 				case "-start": {
 					if (argIndex < args.length + 1) {
@@ -113,9 +220,170 @@ public class RelocateContext {
 					}
 					break;
 				}
+				case "-b":
+				case "-batch": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							batchSize = Integer.valueOf(args[argIndex]);
+							if (batchSize < 1) batchSize = 1;
+							if (batchSize > MAX_BATCH_SIZE) batchSize = MAX_BATCH_SIZE;
+						} catch (NumberFormatException e) { 
+							/* keep default batch size in case of parse error */ 
+						}
+					}
+					break;
+				}
+				case "-sessions": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							sessions = Integer.valueOf(args[argIndex]);
+							if (sessions < 0) sessions = 0;
+						} catch (NumberFormatException e) { 
+							/* keep default in case of parse error */ 
+						}
+					}
+					break;
+				}
+				case "-p":
+				case "-partitions": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							partitions = Integer.valueOf(args[argIndex]);
+							if (partitions < 1) partitions = 1;
+						} catch (NumberFormatException e) { 
+							/* keep default in case of parse error */ 
+						}
+					}
+					break;
+				}
+				case "-virtual": {
+					virtual = true;
+					break;
+				}
+				case "-largesize": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							largeSize = parseSize(args[argIndex]);
+							if (largeSize < 0L) largeSize = 0L;
+						} catch (NumberFormatException e) { 
+							/* keep default in case of parse error */ 
+						}
+					}
+					break;
+				}
+				case "-largethreads": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							largeThreads = Integer.valueOf(args[argIndex]);
+							if (largeThreads < 0) largeThreads = 0;
+						} catch (NumberFormatException e) { 
+							/* keep default in case of parse error */ 
+						}
+					}
+					break;
+				}
+				case "-hostlimit": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							hostLimit = Integer.valueOf(args[argIndex]);
+							if (hostLimit < 0) hostLimit = 0;
+						} catch (NumberFormatException e) { 
+							/* keep default in case of parse error */ 
+						}
+					}
+					break;
+				}
+				case "-metricsport": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							metricsPort = Integer.valueOf(args[argIndex]);
+							if (metricsPort < 0 || metricsPort > 65535) metricsPort = 0;
+						} catch (NumberFormatException e) { 
+							/* keep default in case of parse error */ 
+						}
+					}
+					break;
+				}
+				case "-checksum": {
+					checksum = true;
+					break;
+				}
+				case "-nochecksum": {
+					noChecksum = true;
+					break;
+				}
+				case "-checksumthreads": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							checksumThreads = Integer.valueOf(args[argIndex]);
+							if (checksumThreads < 1) checksumThreads = 1;
+						} catch (NumberFormatException e) { 
+							/* keep default in case of parse error */ 
+						}
+					}
+					break;
+				}
+				case "-checksumrate": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							checksumRate = Long.valueOf(args[argIndex]);
+							if (checksumRate < 0L) checksumRate = 0L;
+						} catch (NumberFormatException e) { 
+							/* keep default in case of parse error */ 
+						}
+					}
+					break;
+				}
+				case "-adaptive": {
+					adaptive = true;
+					break;
+				}
+				case "-pipeline": {
+					pipeline = true;
+					break;
+				}
+				case "-lookupthreads": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							lookupThreads = Integer.valueOf(args[argIndex]);
+							if (lookupThreads < 1) lookupThreads = 1;
+						} catch (NumberFormatException e) { 
+							/* keep default in case of parse error */ 
+						}
+					}
+					break;
+				}
+				case "-verifythreads": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							verifyThreads = Integer.valueOf(args[argIndex]);
+							if (verifyThreads < 1) verifyThreads = 1;
+						} catch (NumberFormatException e) { 
+							/* keep default in case of parse error */ 
+						}
+					}
+					break;
+				}
 				case "-trim":
 					trim = true;
 					break;
+				case "-move":
+					move = true;
+					break;
+				case "-antijoin":
+					antijoin = true;
+					break;
 					
 				// add new options above this line
 				case "-h":
@@ -132,6 +400,8 @@ public class RelocateContext {
 		for (; argIndex < args.length; argIndex++) {
 			sourceList.add(args[argIndex].trim());
 		}
+		// a move trims the source replicas right after the replication, so its checksum is verified unless declined
+		checksum = (checksum || move) && !noChecksum;
 		
 		// read and process configuration information
 		ConfigReader configReader = new ConfigReader();
@@ -152,6 +422,19 @@ public class RelocateContext {
 				startDataId = Long.parseLong(startDataIdStr);
 			} catch (NumberFormatException e) { };
 		}
+		// optional rate limits
+		long bytesPerSecond = configSize(config, "bytesPerSecond");
+		long opsPerSecond = configSize(config, "opsPerSecond");
+		long offHoursBytesPerSecond = configSize(config, "offHoursBytesPerSecond");
+		long offHoursOpsPerSecond = configSize(config, "offHoursOpsPerSecond");
+		String throttleHours = config.get("throttleHours");
+		if (bytesPerSecond > 0L || opsPerSecond > 0L || offHoursBytesPerSecond > 0L || offHoursOpsPerSecond > 0L) {
+			try {
+				throttle = new Throttle(bytesPerSecond, opsPerSecond, throttleHours, offHoursBytesPerSecond, offHoursOpsPerSecond);
+			} catch (IllegalArgumentException e) {
+				throw new MyRodsException("Configuration keyword throttleHours: " + e.getMessage());
+			}
+		}
 		sourceResources = config.get("sourceResources");
 		if (sourceList.size() == 0 && sourceResources != null) {
 			for (String source : sourceResources.split(",| ")) {
@@ -169,16 +452,123 @@ public class RelocateContext {
 				"-help, -h, -?           : exit after showing this usage text.\n" +
 				"-verbose, -v            : print names of processed objects.\n" +
 				"-log, -l                : specify name of logfile (default is '" + LOG_FILE + "')\n" +
+				"-logFormat text|tsv     : format of the log, tsv has a line per action with data id, size and duration\n" +
+				"-logSync <millis>       : synchronize the log to disk at this interval. Default is to leave this to the OS.\n" +
 				"-threads <#threads>, -t : specify number of parallel threads to use. Default is 1 thread.\n" +
+				"-batch <#objects>, -b   : number of data objects looked up per catalog query. Default is 64, maximum " + MAX_BATCH_SIZE + ".\n" +
+				"-sessions <#sessions>   : maximum number of iRODS sessions shared by the threads. Default is one per thread,\n" +
+				"                          with -virtual at most " + VIRTUAL_SESSIONS + ".\n" +
+				"                          Enumeration (one per partition) and checksum verification use sessions of their own.\n" +
+				"-partitions <#>, -p     : split the DATA_ID range into partitions that are enumerated in parallel. Default is 1.\n" +
+				"-virtual                : use virtual threads (requires Java 21), which need less memory than platform threads.\n" +
+				"                          A thread holds a session while it processes a block, so -sessions rather than\n" +
+				"                          -threads determines the number of data objects processed at the same time.\n" +
+				"-largeSize <size>       : data objects of at least this size (suffix K, M, G or T allowed) are processed\n" +
+				"                          in a separate lane, largest first. Default is 1G, 0 disables the lane.\n" +
+				"-largeThreads <#>       : maximum number of threads processing large objects. Default is half of the threads.\n" +
+				"-hostLimit <#>          : maximum number of replications in progress per storage host. Default is no limit.\n" +
+				"-metricsPort <port>     : serve metrics in Prometheus format at http://localhost:<port>/metrics\n" +
+				"                          (metrics are always available via JMX)\n" +
+				"-adaptive               : start with a few threads and adapt their number to the throughput and the\n" +
+				"                          response of the iRODS server, using at most the number given by -threads\n" +
+				"-pipeline               : process in separate lookup, verify and act stages, -threads then sets the act threads\n" +
+				"-lookupThreads <#>      : number of threads of the lookup stage in pipeline mode. Default is 1.\n" +
+				"-verifyThreads <#>      : number of threads of the verify stage in pipeline mode. Default is 2.\n" +
+				"-checksum               : verify the checksum of new destination replicas in the background,\n" +
+				"                          in move mode before the source replicas are trimmed (implied by -move)\n" +
+				"-noChecksum             : do not verify checksums, a move then trims the source replicas once the size\n" +
+				"                          of the new data file has been checked\n" +
+				"-checksumThreads <#>    : number of threads (and iRODS sessions) that verify checksums. Default is 1.\n" +
+				"-checksumRate <#>       : maximum number of checksum verifications per second. Default is no limit.\n" +
 				"-trim                   : trim replicas from source resources, provided that a perfect replica exists on destination\n" +
 				"                          NB: When trim option is specified, only trim actions take place, no replication actions\n" +
+				"-move                   : replicate to destination and trim replicas from source resources in a single run,\n" +
+				"                          source replicas are trimmed once the checksum of the new replica has been verified\n" +
 				"-start, -s              : filters objects, only select objects with data id higher or equal to start\n" +
-				"-nearby, -n             : a replica on a resource located on the same host as the destination resource suffices" +
-				"-dryrun                 : perform all preparations (and select data objects) but do not take any further actions" +
+				"-resume, -r             : skip data objects that were processed by an earlier run with the same resources and mode\n" +
+				"-checkpoint <file>      : specify name of the checkpoint file used to resume (default is '" + CHECKPOINT_FILE + "')\n" +
+				"-statCache <file>       : cache of data files found perfect (about 48 MB), used to skip unchanged source\n" +
+				"                          replicas in later runs. Default is no cache. Destination replicas are always\n" +
+				"                          checked before a trim.\n" +
+				"-recheck                : check all data files again, ignoring the stat cache\n" +
+				"-antijoin               : while enumerating, leave out data objects with a good replica (catalog status)\n" +
+				"                          at the destination, or in trim mode those without, without checking data files\n" +
+				"-nearby, -n             : a replica on a resource located on the same host as the destination resource suffices\n" +
+				"-dryrun                 : perform all preparations (and select data objects) but do not take any further actions\n" +
+				"-plan                   : report the number and size of the data objects per source resource and host,\n" +
+				"                          estimate the work left and the run time, then exit\n" +
+				"-planRate <bytes/s>     : transfer rate used to project the run time in plan mode (suffix K, M, G or T allowed)\n" +
 		        "-config <configfile>    :\n" +
 		        "   The configfile is a local path to a textfile with configuration key=value lines.\n" +
 		        "\nConfiguration file keywords:\n" +
-				printKeywords(REQUIRED_KEYWORDS) + "\n";
+				printKeywords(REQUIRED_KEYWORDS) + "\n" +
+				"Optional keywords:\n" +
+				printKeywords(OPTIONAL_KEYWORDS) + "\n";
+	}
+	
+	/**
+	 * @return number of threads that use an iRODS session to process data objects
+	 */
+	public int totalThreads() {
+		return pipeline ? lookupThreads + verifyThreads + threads : threads;
+	}
+	
+	/**
+	 * @return number of iRODS sessions shared by the processing threads
+	 */
+	public int processingSessions() {
+		if (sessions != 0) {
+			return sessions;
+		}
+		// virtual threads are cheap, their number may exceed the number of sessions the server can bear
+		return virtual ? Math.min(totalThreads(), VIRTUAL_SESSIONS) : totalThreads();
+	}
+	
+	/**
+	 * @return maximum number of large objects processed at the same time
+	 */
+	public int largeClaims() {
+		return largeThreads == 0 ? Math.max(1, threads / 2) : largeThreads;
+	}
+	
+	/**
+	 * @param size  number of bytes, optionally followed by a K, M, G or T suffix (powers of 1024)
+	 * @return number of bytes
+	 */
+	static long parseSize(String size) throws NumberFormatException {
+		String s = size.trim().toUpperCase();
+		long multiplier = 1L;
+		if (s.endsWith("B")) {
+			s = s.substring(0, s.length() - 1);
+		}
+		int unit = s.isEmpty() ? -1 : "KMGT".indexOf(s.charAt(s.length() - 1));
+		if (unit >= 0) {
+			multiplier = 1L << (10 * (unit + 1));
+			s = s.substring(0, s.length() - 1);
+		}
+		return Long.parseLong(s.trim()) * multiplier;
+	}
+	
+	/**
+	 * @return description of the parameters that determine which data objects are processed and how
+	 */
+	public String runId() {
+		List<String> sources = new ArrayList<String>(sourceList);
+		Collections.sort(sources);
+		return "mode=" + (trim ? "trim" : move ? "move" : "replicate") + (nearby ? ",nearby" : "") + (antijoin ? ",antijoin" : "") +
+				" destination=" + destinationResource + " sources=" + String.join(",", sources);
+	}
+	
+	private static long configSize(Map<String,String> config, String keyword) throws MyRodsException {
+		String value = config.get(keyword);
+		if (value == null || value.trim().isEmpty()) {
+			return 0L;
+		}
+		try {
+			return Math.max(0L, parseSize(value));
+		} catch (NumberFormatException e) {
+			throw new MyRodsException("Configuration keyword " + keyword + " has an invalid value: " + value);
+		}
 	}
 	
 	private String printKeywords(String[] keywords) {
@@ -195,13 +585,26 @@ public class RelocateContext {
 	public String toString() {
 		return 
 			"verbose / debug / usage      = " + verbose + " / " + debug + " / " + usage + "\n" +
-			"logfile                      = " + logFile + "\n" +
-			"threads                      = " + threads + "\n" +
+			"logfile (format, sync)       = " + logFile + " (" + (logTsv ? "tsv" : "text") + ", " +
+					(logSyncMillis == 0L ? "os" : logSyncMillis + " ms") + ")\n" +
+			"checkpoint (resume)          = " + resumeFile + " (" + resume + ")\n" +
+			"stat cache (recheck)         = " + (statCacheFile == null ? "none" : statCacheFile) + " (" + recheck + ")\n" +
+			"threads                      = " + threads + (virtual ? " (virtual)" : "") + (adaptive ? " (adaptive)" : "") + "\n" +
+			"batch size                   = " + batchSize + "\n" +
+			"large objects (threads)      = " + (largeSize == 0L ? "off" : ">= " + largeSize + " bytes (" + largeClaims() + ")") + "\n" +
+			"replications per host        = " + (hostLimit == 0 ? "unlimited" : hostLimit) + "\n" +
+			"checksum (threads, rate)     = " + checksum + " (" + checksumThreads + ", " +
+					(checksumRate == 0L ? "unlimited" : checksumRate + "/s") + ")\n" +
+			"metrics port                 = " + (metricsPort == 0 ? "none" : metricsPort) + "\n" +
+			"pipeline (lookup / verify)   = " + pipeline + " (" + lookupThreads + " / " + verifyThreads + ")\n" +
+			"sessions                     = " + processingSessions() + "\n" +
+			"partitions                   = " + partitions + "\n" +
 			"host : port                  = " + host + " : " + port + "\n" +
 			"username # zone (authPam)    = " + userName + " # " + zone + " (" + authPam + ")\n" +
 			"password                     = " + (password == null || password.equals("")? "null" : "*redacted*") + "\n" +
 			"destinationResource          = " + destinationResource + "\n" +
-			"sourceResources              = " + sourceResources + "\n";
+			"sourceResources              = " + sourceResources + "\n" +
+			"rate limits                  = " + (throttle == null ? "none" : throttle.toString()) + "\n";
 	}
 	
 }
@@ -4,13 +4,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.PrimitiveIterator;
 import java.util.stream.Collectors;
 
 import nl.tsmeele.log.Log;
 import nl.tsmeele.log.LogLevel;
-import nl.tsmeele.myrods.high.Hirods;
 import nl.tsmeele.myrods.high.IrodsUser;
 import nl.tsmeele.myrods.plumbing.MyRodsException;
 
@@ -19,13 +17,29 @@ import nl.tsmeele.myrods.plumbing.MyRodsException;
  *
  */
 public class RelocateMain {
-	static Hirods hirods = null;
+	static IrodsSession hirods = null;
 	static int processedObjectCount = 0;
 	static RelocateContext ctx = new RelocateContext();
-	static Queue<String> queue = new ConcurrentLinkedQueue<String>();
+	static WorkQueue queue = null;
+	// capacity of the work queue, expressed in batches per processing thread
+	static final int QUEUED_BATCHES_PER_THREAD = 4;
 	
     public static void main( String[] args ) throws IOException
 	{
+		System.exit(run(new RelocateContext(), args));
+	}
+	
+	/**
+	 * Runs irelocate with a context prepared by the caller, e.g. with sessions on another data grid.
+	 * @param context  context, options are added from the arguments
+	 * @param args     command line arguments
+	 * @return exit status: 0 if done, 1 on invalid arguments, 2 if the login failed, 3 on other errors
+	 *         and 4 if the run is incomplete
+	 */
+	public static int run(RelocateContext context, String[] args) throws IOException
+	{
+		ctx = context;
+		processedObjectCount = 0;
 		// analyze command line arguments
 		try {
 			ctx.processArgs(args);
@@ -40,7 +54,7 @@ public class RelocateMain {
 		}
 		if (ctx.usage) {
 			System.out.println(ctx.usage());
-			System.exit(1);
+			return 1;
 		}
 		if (ctx.dryrun) {
 			System.out.println("*** DRYRUN ***");
@@ -57,15 +71,27 @@ public class RelocateMain {
 			String[] classFilter = { "nl.tsmeele.irelocate" };
 			Log.setDebugOutputFilter(classFilter);
 		}
+		if (ctx.virtual && !WorkerThreads.isVirtualSupported()) {
+			Log.warning("Virtual threads require Java 21, using platform threads");
+			ctx.virtual = false;
+		}
+		if (ctx.trim && ctx.move) {
+			Log.error("The trim and move options cannot be combined.\n");
+			System.out.println(ctx.usage());
+			return 1;
+		}
 		if (ctx.trim) {
 			Log.info("TRIM option specified: will trim data from source resources (only if also exists on destination)");
 		}
+		if (ctx.move) {
+			Log.info("MOVE option specified: will replicate to destination and then trim data from source resources");
+		}
 		
 		// log in and assert that we are a rodsadmin type user
 		IrodsUser user = new IrodsUser(ctx.userName, ctx.zone);
 		hirods = rodsAdminLogin(ctx.host, ctx.port, user, ctx.password, ctx.authPam);
 		if (hirods == null) {
-			System.exit(2);
+			return 2;
 		}
 		Log.debug("Logged in as " + user.nameAndZone() + " (rodsadmin)");
 		
@@ -78,7 +104,7 @@ public class RelocateMain {
 		 */
 		Resource destResc = ctx.rescList.get(ctx.destinationResource);
 		if (destResc == null || !ctx.rescList.hasStorageResource(destResc)) {
-			errorExit(ctx.destinationResource, "does not exist or is invalid destination resource");
+			return errorExit(ctx.destinationResource, "does not exist or is invalid destination resource");
 		}
 		
 		// show nearby resources that will be considered acceptable destinations as well
@@ -99,7 +125,7 @@ public class RelocateMain {
 		for (String rescName : ctx.sourceList) {
 			Resource resc = ctx.rescList.get(rescName);
 			if (resc == null) {
-				errorExit(rescName, "source resource does not exist");
+				return errorExit(rescName, "source resource does not exist");
 			}
 			// note that leafs may be empty coordinating resources
 			List<Resource> expanded = ctx.rescList.expandToLeafs(resc);
@@ -119,72 +145,255 @@ public class RelocateMain {
 			}
 			// source must be a storage type resource
 			if (!resc.isStorageResource()) {
-				errorExit(resc.name, "is not a valid (source) storage type resource" + expanded );
+				return errorExit(resc.name, "is not a valid (source) storage type resource" + expanded );
 			}
 			// source may not overlap with destination
 			if (ctx.rescList.isInTree(destResc, resc) ||
 				ctx.rescList.isInTree(resc,  destResc)) {
-				errorExit(resc.name, "source resource may not overlap with destination resource" + expanded);
+				return errorExit(resc.name, "source resource may not overlap with destination resource" + expanded);
 			}
 			if (ctx.nearby && ctx.otherDestinationResources.contains(resc)) {
-				errorExit(resc.name, "source resource may not overlap with a resource 'nearby' the destination resource");
+				return errorExit(resc.name, "source resource may not overlap with a resource 'nearby' the destination resource");
 			}
 		}
 		
 		// save expanded list as source resources
 		ctx.sourceList = sources.stream().map(r -> r.name).collect(Collectors.toList());
+		ctx.decisionEngine = new DecisionEngine(ctx.rescList, destResc, ctx.sourceList, ctx.otherDestinationResources, ctx.trim, ctx.move);
+		if (ctx.antijoin) {
+			if (ctx.move) {
+				Log.warning("Antijoin option ignored, in move mode all data objects need an action");
+			} else {
+				// the catalog registers replicas on the leafs of the destination resource
+				List<String> join = ctx.rescList.expandToLeafs(destResc).stream().map(r -> r.name).collect(Collectors.toList());
+				if (ctx.nearby) {
+					ctx.otherDestinationResources.forEach(r -> join.add(r.name));
+				}
+				ctx.joinResources = join;
+			}
+		}
+		if (ctx.hostLimit > 0 && !ctx.trim) {
+			ctx.hostLimiter = new HostLimiter(ctx.rescList, destResc, ctx.hostLimit);
+		}
 
-		// find all data objects with one or more replicas on source resources
-		// if specified, filter out data objects with a data id less than startDataID
-		List<String> objs = IrodsQuery.dataObjectsOnResources(hirods, ctx.sourceList, ctx.startDataId);
-		Log.debug("Found " + objs.size() + " matching data objects");
-
-		// done with preparation
-		hirods.rcDisconnect();	
+		// record progress, and if requested skip data objects processed by an earlier run
+		ctx.checkpoint = new Checkpoint(ctx.resumeFile, ctx.runId());
+		if (ctx.resume) {
+			try {
+				if (ctx.checkpoint.load()) {
+					ctx.startDataId = ctx.checkpoint.resumeFrom(ctx.startDataId);
+					System.out.println("Resuming from checkpoint " + ctx.resumeFile + " at DATA_ID = " + ctx.startDataId);
+				} else {
+					Log.warning("Checkpoint " + ctx.resumeFile + " not found, processing all data objects");
+				}
+			} catch (IOException e) {
+				Log.error(e.getMessage());
+				hirods.rcDisconnect();
+				return 3;
+			}
+		}
+		
+		// in case of plan mode, report the work using aggregate queries and stop here
+		if (ctx.plan) {
+			Planner.report(ctx, hirods);
+			hirods.rcDisconnect();
+			return 0;
+		}
 		
 		// in case of dryrun, show statistics and stop here
 		if (ctx.dryrun) {
-			System.out.println("DRYRUN: " + objs.size() + " data objects would be processed by " + ctx.threads + " threads");
-			if (!objs.isEmpty()) {
-				System.out.println("        First data object to be processed has DATA_ID = " + objs.get(0));
+			// find all data objects with one or more replicas on source resources
+			// if specified, filter out data objects with a data id less than startDataID
+			PrimitiveIterator.OfLong objs = ctx.checkpoint.skipDone(
+					IrodsQuery.dataObjectsOnResources(hirods, ctx.sourceList, ctx.startDataId, Long.MAX_VALUE));
+			long first = 0L;
+			long objCount = 0L;
+			while (objs.hasNext()) {
+				long dataId = objs.nextLong();
+				if (objCount == 0L) {
+					first = dataId;
+				}
+				objCount++;
+			}
+			hirods.rcDisconnect();
+			System.out.println("DRYRUN: " + objCount + " data objects would be processed by " + ctx.threads + " threads");
+			if (objCount > 0L) {
+				System.out.println("        First data object to be processed has DATA_ID = " + first);
 			}
-			System.exit(0);
+			return 0;
 		}
 		
 		// are there any objects to process?
-		if (objs.isEmpty()) {
+		long[] dataIdRange = IrodsQuery.dataIdRange(hirods, ctx.sourceList, ctx.startDataId);
+		
+		// done with preparation
+		hirods.rcDisconnect();
+		
+		if (dataIdRange == null) {
 			System.out.println("No processing needed (object list empty) for selected source resources and data object range.");
-			System.exit(0);
+			return 0;
 		}
 		
 		// start a new log
-		ctx.log = new LogFile(ctx.logFile);
+		ctx.log = new LogFile(ctx.logFile, ctx.logTsv, ctx.logSyncMillis);
+		
+		// data files found perfect in earlier runs need not be checked again
+		if (ctx.statCacheFile != null) {
+			try {
+				ctx.statCache = new StatCache(ctx.statCacheFile);
+				Log.debug("Using stat cache " + ctx.statCache.toString());
+			} catch (IOException e) {
+				Log.warning("Unable to open stat cache " + ctx.statCacheFile + ", checking all data files: " + e.getMessage());
+			}
+		}
+		
+		// make the statistics visible while the run is in progress
+		Metrics metrics = new Metrics(ctx.stats);
+		metrics.registerMBean();
+		if (ctx.metricsPort != 0) {
+			try {
+				metrics.startHttp(ctx.metricsPort);
+				System.out.println("Metrics available at http://localhost:" + ctx.metricsPort + "/metrics");
+			} catch (IOException e) {
+				Log.warning("Unable to serve metrics on port " + ctx.metricsPort + ": " + e.getMessage());
+			}
+		}
+		
+		// sessions are shared by the threads, already logged in before the threads need them
+		int sessions = ctx.processingSessions();
+		SessionPool pool = new SessionPool(ctx, sessions);
+		pool.preAuthenticate(Math.min(sessions, ctx.totalThreads()));
 		
-		// initiate processing of selected data objects
-		queue.addAll(objs);
-
 		// create threads for parallel processing
-		System.out.println("Start processing data objects using " + ctx.threads + " threads");
+		int consumers = ctx.pipeline ? ctx.lookupThreads : ctx.threads;
+		queue = new WorkQueue(ctx.batchSize, consumers * QUEUED_BATCHES_PER_THREAD, ctx.largeSize, ctx.largeClaims());
 		ArrayList<Thread> threads = new ArrayList<Thread>();
-		for (int i = 0; i < ctx.threads; i++) {
-			Thread t = new Thread(new DataObjectProcessor(i, ctx, queue));
-			threads.add(t);
-			t.start();
-		}
 		
+		// split the data id range into partitions that are enumerated in parallel, each using its own session
+		// the first and last partition are unbounded to include objects beyond the range found above
+		long span = dataIdRange[1] - dataIdRange[0] + 1;
+		int partitions = (int) Math.max(1L, Math.min(ctx.partitions, span));
+		SessionPool enumerationPool = new SessionPool(ctx, partitions);
+		enumerationPool.preAuthenticate(partitions);
+		ArrayList<Thread> enumerators = new ArrayList<Thread>();
+		for (int i = 0; i < partitions; i++) {
+			long start = i == 0 ? ctx.startDataId : dataIdRange[0] + span * i / partitions;
+			long end = i == partitions - 1 ? Long.MAX_VALUE : dataIdRange[0] + span * (i + 1) / partitions - 1;
+			enumerators.add(new Thread(new DataObjectEnumerator(i, ctx, enumerationPool, queue, threads, start, end)));
+		}
 		
+		ctx.checkpoint.startWriter();
+		if (ctx.adaptive) {
+			// the adaptive limit applies to the threads that carry out the actions
+			ctx.concurrency = new ConcurrencyController(ctx.stats, ctx.threads);
+			ctx.concurrency.start();
+		}
+		// enumeration and checksum verification use sessions on top of those of the processing threads
+		// in move mode the processing threads verify the checksums themselves
+		int checksumSessions = ctx.checksum && !ctx.trim && !ctx.move ? ctx.checksumThreads : 0;
+		int totalSessions = sessions + partitions + checksumSessions;
+		System.out.println("Start processing data objects using " + ctx.totalThreads() + (ctx.virtual ? " virtual" : "") + 
+				" threads" + (ctx.adaptive ? " (adaptive, starting with " + ctx.concurrency.getLimit() + " active)" : "") +
+				" and at most " + totalSessions + " iRODS sessions (" + sessions + " processing, " + partitions + " enumeration" +
+				(checksumSessions > 0 ? ", " + checksumSessions + " checksum" : "") + ")" +
+				(ctx.pipeline ? " in a pipeline of " + ctx.lookupThreads + " lookup, " + ctx.verifyThreads + " verify and " +
+						ctx.threads + " act threads" : "") +
+				(partitions > 1 ? ", enumerating " + partitions + " DATA_ID ranges in parallel" : ""));
+		if (ctx.throttle != null) {
+			System.out.println("Rate limits: " + ctx.throttle.toString());
+		}
+		if (ctx.checksum) {
+			if (ctx.trim) {
+				Log.warning("Checksum option ignored, trim does not create replicas");
+			} else if (ctx.move) {
+				ctx.checksums = new ChecksumVerifier(ctx, 0, ctx.checksumRate);
+				System.out.println("Verifying checksums of new replicas before trimming the source replicas" +
+						(ctx.checksumRate > 0L ? ", at most " + ctx.checksumRate + " per second" : ""));
+			} else {
+				ctx.checksums = new ChecksumVerifier(ctx, ctx.checksumThreads, ctx.checksumRate);
+				ctx.checksums.start();
+				System.out.println("Verifying checksums of new replicas in the background using " + ctx.checksumThreads + " threads" +
+						(ctx.checksumRate > 0L ? ", at most " + ctx.checksumRate + " per second" : ""));
+			}
+		}
+		if (ctx.pipeline) {
+			Pipeline pipeline = new Pipeline(ctx, queue, pool, ctx.lookupThreads, ctx.verifyThreads, ctx.threads);
+			threads.addAll(pipeline.start(ctx.virtual));
+		} else {
+			for (int i = 0; i < ctx.threads; i++) {
+				Thread t = WorkerThreads.newThread(new DataObjectProcessor(i, ctx, queue, pool), "DataObjectProcessor-" + i, ctx.virtual);
+				threads.add(t);
+				t.start();
+			}
+		}
+		// feed the selected data objects to the threads while enumerating
+		for (Thread t : enumerators) {
+			t.start();
+		}
 		
+		// wait for the threads to finish the remaining data objects
+		joinAll(enumerators);
+		enumerationPool.close();
+		joinAll(threads);
+		if (ctx.concurrency != null) {
+			ctx.concurrency.stop();
+		}
+		pool.close();
+		if (ctx.checksums != null) {
+			if (ctx.checksums.pending() > 0) {
+				System.out.println("Waiting for the verification of " + ctx.checksums.pending() + " checksums");
+			}
+			ctx.checksums.finish();
+		}
+		System.out.println(ctx.stats.summary(ctx.trim, ctx.move));
+		if (ctx.checksums != null) {
+			System.out.println(ctx.stats.checksumSummary());
+		}
+		if (ctx.joinResources != null) {
+			System.out.println("Data objects left out by the join with the destination: " + ctx.stats.joined.sum());
+		}
+		if (ctx.statCache != null) {
+			System.out.println("Data file checks taken from stat cache: " + ctx.stats.statCacheHits.sum());
+			ctx.statCache.close();
+		}
+		System.out.println(ctx.stats.latencySummary());
+		metrics.stop();
+		ctx.log.close();
+		try {
+			ctx.checkpoint.close();
+		} catch (IOException e) {
+			Log.error("Unable to save checkpoint " + ctx.resumeFile + ": " + e.getMessage());
+		}
+		if (ctx.stats.incomplete.sum() > 0L) {
+			System.out.println("INCOMPLETE: the enumeration of " + ctx.stats.incomplete.sum() + " DATA_ID range(s) failed, " +
+					"not all data objects have been processed. Use -resume to process the remaining data objects.");
+			return 4;
+		}
+		return 0;
+	}
+	
+	private static void joinAll(List<Thread> threads) {
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
 	}
     
-    public static void errorExit(String rescName, String errorMessage) throws MyRodsException, IOException {
+    /**
+     * @return exit status after an error in the resources
+     */
+    public static int errorExit(String rescName, String errorMessage) throws MyRodsException, IOException {
     	Log.error("'" + rescName + "' " + errorMessage);
 		hirods.rcDisconnect();
-		System.exit(3);
+		return 3;
     }
     
     
-    public static Hirods rodsAdminLogin(String host, int port, IrodsUser user, String password, boolean authPam)  {
-		Hirods hirods = new Hirods(host, port);
+    public static IrodsSession rodsAdminLogin(String host, int port, IrodsUser user, String password, boolean authPam)  {
+		IrodsSession hirods = ctx.sessionFactory.open(host, port);
 		boolean success = false;
 		try {
 			if (authPam) {
@@ -202,7 +411,7 @@ public class RelocateMain {
 					success = false;
 				}
 			} else { 
-				Log.error("Unable to connect and/or login to " + host + " as " + user.nameAndZone() + " iRODS error: " + hirods.intInfo);
+				Log.error("Unable to connect and/or login to " + host + " as " + user.nameAndZone() + " iRODS error: " + hirods.intInfo());
 			}
 			// rodsAdminLogin failed, attempt to clean up the connection
 			hirods.rcDisconnect();
@@ -0,0 +1,81 @@
+package nl.tsmeele.irelocate;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outcome counters and operation durations of a run, shared by all processing threads.
+ */
+public class RelocateStats {
+	public final LongAdder objects = new LongAdder();
+	public final LongAdder ok = new LongAdder();
+	public final LongAdder replicated = new LongAdder();
+	public final LongAdder trimmed = new LongAdder();
+	public final LongAdder error = new LongAdder();
+	public final LongAdder skipped = new LongAdder();
+	// failed iRODS operations: replications and trims refused by the server and lost sessions,
+	// unlike error this excludes data objects that are in a state that does not allow an action
+	public final LongAdder failures = new LongAdder();
+	// data objects looked up plus data files checked by the operations timed in getReplicas and datafileStatus
+	public final LongAdder lookupItems = new LongAdder();
+	// bytes replicated
+	public final LongAdder bytes = new LongAdder();
+	// outcomes of the checksum verification of destination replicas
+	public final LongAdder verified = new LongAdder();
+	public final LongAdder checksumError = new LongAdder();
+	public final LongAdder checksumSkipped = new LongAdder();
+	// data objects left out by the join with the destination during enumeration
+	public final LongAdder joined = new LongAdder();
+	// DATA_ID ranges whose enumeration did not complete, their remaining data objects are not processed
+	public final LongAdder incomplete = new LongAdder();
+	// data file checks answered by the stat cache
+	public final LongAdder statCacheHits = new LongAdder();
+	// duration of the iRODS operations
+	public final LatencyHistogram getReplicas = new LatencyHistogram("getReplicas");
+	public final LatencyHistogram datafileStatus = new LatencyHistogram("retrieveDatafileStatus");
+	public final LatencyHistogram replicate = new LatencyHistogram("replicate");
+	public final LatencyHistogram trim = new LatencyHistogram("trim");
+	public final LatencyHistogram login = new LatencyHistogram("login");
+	public final LatencyHistogram checksum = new LatencyHistogram("checksum");
+	public final long startNanos = System.nanoTime();
+
+	/**
+	 * @return all operation histograms
+	 */
+	public LatencyHistogram[] histograms() {
+		return new LatencyHistogram[] { getReplicas, datafileStatus, replicate, trim, login, checksum };
+	}
+
+	/**
+	 * @return one line summary of the average and 95th percentile duration of the operations that were used
+	 */
+	public String latencySummary() {
+		StringBuilder sb = new StringBuilder("Operation duration in ms (mean / p95):");
+		for (LatencyHistogram h : histograms()) {
+			if (h.count() > 0L) {
+				sb.append(String.format("  %s %.1f / %.0f", h.name, h.meanMillis(), h.quantileMillis(0.95)));
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param trim  true if the run trims replicas, otherwise it replicates
+	 * @param move  true if the run replicates and trims
+	 * @return one line summary of the counters
+	 */
+	public String summary(boolean trim, boolean move) {
+		return "Data objects total: " + objects.sum() + "  okay: " + ok.sum() +
+				(trim || move ? "  trimmed-okay: " + trimmed.sum() : "") +
+				(trim ? "" : "  replicated-okay: " + replicated.sum()) +
+				"  error: " + error.sum() + "  skipped: " + skipped.sum();
+	}
+
+	/**
+	 * @return one line summary of the checksum verification
+	 */
+	public String checksumSummary() {
+		return "Checksums verified-okay: " + verified.sum() + "  error: " + checksumError.sum() +
+				"  not verified: " + checksumSkipped.sum();
+	}
+
+}
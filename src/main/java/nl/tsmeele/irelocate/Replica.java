@@ -1,16 +1,8 @@
 package nl.tsmeele.irelocate;
 
 import java.io.IOException;
-import nl.tsmeele.myrods.api.DataObjInp;
-import nl.tsmeele.myrods.api.ExecMyRuleInp;
-import nl.tsmeele.myrods.api.KeyValPair;
-import nl.tsmeele.myrods.api.Kw;
-import nl.tsmeele.myrods.api.MsParam;
-import nl.tsmeele.myrods.api.MsParamArray;
-import nl.tsmeele.myrods.api.RHostAddr;
-import nl.tsmeele.myrods.high.Hirods;
-import nl.tsmeele.myrods.irodsStructures.DataPtr;
-import nl.tsmeele.myrods.irodsStructures.DataStruct;
+import java.util.List;
+
 import nl.tsmeele.myrods.plumbing.MyRodsException;
 
 public class Replica {
@@ -18,6 +10,10 @@ public class Replica {
 	private final static String STALE = "0";
 	public String dataId, collName, dataName, dataReplNum, dataReplStatus, dataSize, dataChecksum, dataRescName, dataPath;
 	public String path;
+	public String dataModifyTime = null;
+	// result of the most recent data file status check, null if not checked
+	public Integer datafileStatus = null;
+	private boolean good, stale;
 	
 	public Replica(String dataId, String collName, String dataName, String dataReplNum, String dataReplStatus, 
 			String dataSize, String dataChecksum, String dataRescName, String dataPath) {
@@ -27,91 +23,54 @@ public class Replica {
 		this.path = collName + "/" + dataName;
 		this.dataReplNum = dataReplNum;
 		this.dataReplStatus = dataReplStatus;
+		this.good = GOOD.equals(dataReplStatus);
+		this.stale = STALE.equals(dataReplStatus);
 		this.dataSize = dataSize;
 		this.dataChecksum = dataChecksum;
 		this.dataRescName = dataRescName;
 		this.dataPath = dataPath;
 	}
 	
-	public boolean replicate(Hirods hirods, String destResource, boolean doChecksum) throws MyRodsException, IOException {
-		KeyValPair condInput = new KeyValPair();
-		condInput.put(Kw.ADMIN_KW, "");
-		condInput.put(Kw.REPL_NUM_KW, dataReplNum);	// source replica
-		condInput.put(Kw.DEST_RESC_NAME_KW, destResource);
-		if (doChecksum) {
-			if (!dataChecksum.equals("")) {
-				// also ensure that checksum of destination replica matches the ICAT stored source replica checksum 
-				condInput.put(Kw.VERIFY_CHKSUM_KW, "");
-			} else {
-				// just calculate and store the destination replica checksum in ICAT
-				condInput.put(Kw.REG_CHKSUM_KW, "");
-			}
-		} else {
-			condInput.put(Kw.NO_COMPUTE_KW, "");
+	/**
+	 * @return size of the replica in bytes, 0 if unknown
+	 */
+	public long size() {
+		try {
+			return Long.parseLong(dataSize);
+		} catch (NumberFormatException e) {
+			return 0L;
 		}
-		DataObjInp dataObjInp = new DataObjInp(path, condInput);
-		hirods.rcDataObjRepl(dataObjInp);
-		return !hirods.error;
+	}
+	
+	public boolean replicate(IrodsSession hirods, String destResource, boolean doChecksum) throws MyRodsException, IOException {
+		return hirods.replicate(this, destResource, doChecksum);
 	}
 
-	public boolean trim(Hirods hirods) throws MyRodsException, IOException {
-		KeyValPair condInput = new KeyValPair();
-		condInput.put(Kw.ADMIN_KW, "");
-		condInput.put(Kw.COPIES_KW, "1");
-		condInput.put(Kw.REPL_NUM_KW, dataReplNum);	// source replica to trim
-		DataObjInp dataObjInp = new DataObjInp(path, condInput);
-		hirods.rcDataObjTrim(dataObjInp);
-		return !hirods.error;
+	public boolean trim(IrodsSession hirods) throws MyRodsException, IOException {
+		return hirods.trim(this);
 	}
 	
-	public int retrieveDatafileStatus(Hirods hirods) throws MyRodsException, IOException {
-		// construct rule and its input args
-		RHostAddr rHostAddr = new RHostAddr("", "", 0, 0);
-		MsParam inputVar1 = new MsParam("*rescName", dataRescName);
-		MsParam inputVar2 = new MsParam("*dataPath", dataPath);
-		MsParam inputVar3 = new MsParam("*replicaSize", dataSize);
-		MsParamArray msParamArray = new MsParamArray(0);
-		msParamArray.add(inputVar1);
-		msParamArray.add(inputVar2);
-		msParamArray.add(inputVar3);
-		String outParamDesc = "ruleExecOut";
-		outParamDesc = outParamDesc.concat("%*result");
-		String myRule = "@external rule " + 
-			"{" +
-				"*fileType = \"\";" +
-				"*fileSize = \"\";" +
-				"*result = msi_stat_vault(*rescName, *dataPath, *fileType, *fileSize);" +
-				"if (*result < 0 || *fileType != \"FILE\") {" +
-					"*result = -1;" +
-				"} else {" +
-					"if (*fileSize != *replicaSize) {" +
-						"*result = 0;" +
-					"} else {" +
-						"*result = 1;" +
-					"}" +
-				"}" +
-			"}";
-		KeyValPair condInput = new KeyValPair();
-		condInput.put(Kw.INSTANCE_NAME_KW, "irods_rule_engine_plugin-irods_rule_language-instance");
-		ExecMyRuleInp ruleInp = new ExecMyRuleInp(myRule, rHostAddr, condInput, outParamDesc, msParamArray);
-		
-		// execute rule and interpret result
-		MsParamArray out = hirods.rcExecMyRule(ruleInp);
-		if (hirods.error || out == null) {
-			return hirods.intInfo;
+	/**
+	 * Checks the data files of multiple replicas. The result of each check is also stored in the replica.
+	 * @param hirods    authenticated iRODS session
+	 * @param replicas  replicas to check
+	 * @return status per replica: 1 if the data file has the size of the replica, 0 if the size differs,
+	 *         -1 if the data file does not exist or is not a file, or an iRODS error code
+	 */
+	public static int[] retrieveDatafileStatus(IrodsSession hirods, List<Replica> replicas) throws MyRodsException, IOException {
+		int[] out = hirods.datafileStatus(replicas);
+		for (int i = 0; i < out.length; i++) {
+			replicas.get(i).datafileStatus = out[i];
 		}
-		MsParam param = (MsParam) ((DataPtr)out.get(2)).get();
-		DataStruct d = param.getParamContent();
-		Integer result = d.lookupInt("myInt");
-		return result;
+		return out;
 	}
 	
 	public boolean isGood() {
-		return dataReplStatus.equals(GOOD);
+		return good;
 	}
 	
 	public boolean isStale() {
-		return dataReplStatus.equals(STALE);
+		return stale;
 	}
 	
 	public String toString() {
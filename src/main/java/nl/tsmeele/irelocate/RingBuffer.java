@@ -0,0 +1,82 @@
+package nl.tsmeele.irelocate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.
+ * Each slot has a sequence number that tells whether it is free for the producer that claimed
+ * the position, or holds an item for the consumer, so producers only contend on a single
+ * atomic counter and never wait for each other.
+ */
+public class RingBuffer<T> {
+	private final Object[] items;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong(0L);
+	// only used by the consumer
+	private long head = 0L;
+
+	/**
+	 * @param capacity  minimum number of items, rounded up to a power of two
+	 */
+	public RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		items = new Object[size];
+		sequences = new AtomicLongArray(size);
+		mask = size - 1;
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds an item, can be called by any thread.
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(T item) {
+		long pos = tail.get();
+		while (true) {
+			int index = (int) (pos & mask);
+			long diff = sequences.get(index) - pos;
+			if (diff == 0L) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					items[index] = item;
+					// publishes the item to the consumer
+					sequences.set(index, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0L) {
+				// slot still holds an item of the previous round
+				return false;
+			} else {
+				// another producer claimed this position
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest item, must only be called by the consumer thread.
+	 * @return the item or null if the buffer is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		int index = (int) (head & mask);
+		if (sequences.get(index) != head + 1) {
+			return null;
+		}
+		T item = (T) items[index];
+		items[index] = null;
+		// frees the slot for the producers of the next round
+		sequences.set(index, head + mask + 1);
+		head++;
+		return item;
+	}
+
+	public boolean isEmpty() {
+		return sequences.get((int) (head & mask)) != head + 1;
+	}
+
+}
@@ -0,0 +1,257 @@
+package nl.tsmeele.irelocate;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.high.IrodsUser;
+
+/**
+ * Pool of authenticated iRODS sessions shared by the processing threads.
+ * The pool caps the number of sessions (server agents) that are open at the same time,
+ * validates sessions that have been idle for a while and replaces retired or broken
+ * sessions in the background.
+ */
+public class SessionPool {
+	// iRODS agents may suffer from memory leaks due to custom rules and/or micro services,
+	// we retire a session after it has processed this many data objects
+	static final int MAX_DATA_OBJECTS_PER_SESSION = 5000;
+	static final long VALIDATE_AFTER_IDLE_MILLIS = 60000L;
+	static final long MAX_LOGIN_BACKOFF_MILLIS = 30000L;
+	// borrowers give up after this many consecutive failed logins, e.g. when the server has gone away
+	static final int MAX_LOGIN_ATTEMPTS = 5;
+	private static final long POLL_INTERVAL_MILLIS = 100L;
+
+	private String host;
+	private int port;
+	private IrodsUser user;
+	private String password;
+	private boolean authPam;
+	private RelocateStats stats;
+	private IrodsSession.Factory sessionFactory;
+	private int maxSessions;
+	private Semaphore permits;
+	private LinkedBlockingDeque<Session> idle = new LinkedBlockingDeque<Session>();
+	private Map<IrodsSession,Session> borrowed = new IdentityHashMap<IrodsSession,Session>();
+	private ScheduledExecutorService maintenance;
+	private volatile boolean closed = false;
+	private AtomicInteger loginFailures = new AtomicInteger(0);
+
+	private static class Session {
+		IrodsSession hirods;
+		long objectCount = 0L;
+		long lastUsed = System.currentTimeMillis();
+
+		Session(IrodsSession hirods) {
+			this.hirods = hirods;
+		}
+	}
+
+	public SessionPool(RelocateContext ctx, int maxSessions) {
+		this.host = ctx.host;
+		this.port = ctx.port;
+		this.user = new IrodsUser(ctx.userName, ctx.zone);
+		this.password = ctx.password;
+		this.authPam = ctx.authPam;
+		this.stats = ctx.stats;
+		this.sessionFactory = ctx.sessionFactory;
+		this.maxSessions = maxSessions;
+		permits = new Semaphore(maxSessions);
+		maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "SessionPool");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Opens sessions in the background, so that they are ready when the processing starts.
+	 * @param count  number of sessions to open
+	 */
+	public void preAuthenticate(int count) {
+		for (int i = 0; i < Math.min(count, maxSessions); i++) {
+			maintenance.execute(this::replace);
+		}
+	}
+
+	/**
+	 * Borrows a session, waits until a session is available.
+	 * @return authenticated session or null if the pool has been closed, the wait was interrupted
+	 *  or the server did not accept a login for MAX_LOGIN_ATTEMPTS consecutive attempts
+	 */
+	public IrodsSession borrow() {
+		long backoff = 1000L;
+		try {
+			while (!closed) {
+				Session session = idle.pollFirst();
+				if (session == null && permits.tryAcquire()) {
+					session = login();
+					if (session == null) {
+						permits.release();
+						if (loginFailures.get() >= MAX_LOGIN_ATTEMPTS) {
+							Log.error("Giving up after " + loginFailures.get() + " consecutive failed logins to " + host);
+							return null;
+						}
+						Thread.sleep(backoff);
+						backoff = Math.min(backoff * 2, MAX_LOGIN_BACKOFF_MILLIS);
+						continue;
+					}
+				}
+				if (session == null) {
+					session = idle.pollFirst(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+					if (session == null) continue;
+				}
+				if (System.currentTimeMillis() - session.lastUsed > VALIDATE_AFTER_IDLE_MILLIS && !isValid(session)) {
+					discard(session);
+					continue;
+				}
+				synchronized (borrowed) {
+					borrowed.put(session.hirods, session);
+				}
+				return session.hirods;
+			}
+		} catch (InterruptedException e) {
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a healthy session to the pool.
+	 * @param hirods       session obtained via borrow
+	 * @param objectCount  number of data objects processed using the session since it was borrowed
+	 */
+	public void release(IrodsSession hirods, int objectCount) {
+		Session session;
+		synchronized (borrowed) {
+			session = borrowed.remove(hirods);
+		}
+		if (session == null) return;
+		session.objectCount += objectCount;
+		session.lastUsed = System.currentTimeMillis();
+		if (closed || session.objectCount >= MAX_DATA_OBJECTS_PER_SESSION) {
+			discard(session);
+			return;
+		}
+		// most recently used sessions are handed out first, so that idle ones can time out
+		idle.offerFirst(session);
+	}
+
+	/**
+	 * Closes a session that has become unusable, a new session is opened in the background.
+	 * @param hirods  session obtained via borrow
+	 */
+	public void invalidate(IrodsSession hirods) {
+		// sessions are invalidated after an IOException, which counts as a failed operation
+		stats.failures.increment();
+		Session session;
+		synchronized (borrowed) {
+			session = borrowed.remove(hirods);
+		}
+		if (session != null) {
+			discard(session);
+		}
+	}
+
+	/**
+	 * Closes a session that works but must not be reused, e.g. because a query on it has not been read
+	 * to the end, a new session is opened in the background.
+	 * @param hirods  session obtained via borrow
+	 */
+	public void retire(IrodsSession hirods) {
+		Session session;
+		synchronized (borrowed) {
+			session = borrowed.remove(hirods);
+		}
+		if (session != null) {
+			discard(session);
+		}
+	}
+
+	public void close() {
+		closed = true;
+		maintenance.shutdownNow();
+		Session session;
+		while ((session = idle.pollFirst()) != null) {
+			disconnect(session);
+		}
+	}
+
+	private void discard(Session session) {
+		disconnect(session);
+		permits.release();
+		if (!closed) {
+			maintenance.execute(this::replace);
+		}
+	}
+
+	/**
+	 * Opens a new session and adds it to the pool, unless the maximum number of sessions is reached.
+	 */
+	private void replace() {
+		replace(1000L);
+	}
+
+	private void replace(long backoff) {
+		if (closed || !permits.tryAcquire()) return;
+		Session session = login();
+		if (session == null) {
+			permits.release();
+			long next = Math.min(backoff * 2, MAX_LOGIN_BACKOFF_MILLIS);
+			if (!closed) {
+				maintenance.schedule(() -> replace(next), backoff, TimeUnit.MILLISECONDS);
+			}
+			return;
+		}
+		idle.offerLast(session);
+	}
+
+	private Session login() {
+		IrodsSession hirods = sessionFactory.open(host, port);
+		try {
+			boolean success;
+			long start = System.nanoTime();
+			if (authPam) {
+				success = hirods.pamLogin(user.name, user.zone, password, user.name, user.zone);
+			} else {
+				success = hirods.nativeLogin(user.name, user.zone, password, user.name, user.zone);
+			}
+			stats.login.record(System.nanoTime() - start);
+			if (success) {
+				Log.debug("connected");
+				loginFailures.set(0);
+				return new Session(hirods);
+			}
+			Log.error("Unable to connect and/or login to " + host + " as " + user.nameAndZone() + " iRODS error: " + hirods.intInfo());
+			hirods.rcDisconnect();
+		} catch (IOException e) {
+			Log.error("Unable to connect to " + host + ": " + e.getMessage());
+		}
+		loginFailures.incrementAndGet();
+		return null;
+	}
+
+	private boolean isValid(Session session) {
+		try {
+			// a lightweight catalog query proves that the session is still alive
+			return session.hirods.getUserType(user.name, user.zone) != null && !session.hirods.error();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void disconnect(Session session) {
+		try {
+			session.hirods.rcDisconnect();
+		} catch (IOException e) {
+			// we ignore disconnect errors
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+package nl.tsmeele.irelocate;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent cache of successful data file checks, so that a later run does not check the
+ * data files of replicas that have not changed since.
+ * A replica is identified by its data id, replica number, resource, physical path, size and
+ * modification time, a change of any of these invalidates the cached check. Only checks that
+ * found a perfect data file are cached.
+ * The cache is a memory-mapped file holding a fixed number of slots, organized in sets of
+ * SET_SIZE slots. A replica maps to one set, when the set is full the oldest entry is evicted.
+ * Entries expire after MAX_AGE_DAYS, so that every data file is checked again now and then.
+ */
+public class StatCache {
+	static final int SET_SIZE = 8;
+	static final long MAX_AGE_DAYS = 30L;
+	static final int DEFAULT_SETS = 1 << 18;	// 2M entries, 48 MB
+	private static final long MAGIC = 0x6972656c53746174L;	// "irelStat"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	// slot: two 64-bit key hashes and the time of the check
+	private static final int SLOT_SIZE = 24;
+	private static final int LOCK_STRIPES = 64;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private final String path;
+	private final int sets;
+	private final long maxAgeMillis = TimeUnit.DAYS.toMillis(MAX_AGE_DAYS);
+	private RandomAccessFile file;
+	private MappedByteBuffer map;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	/**
+	 * Opens the cache, the file is created (or reset if it has another layout) as needed.
+	 * @param path  file that holds the cache
+	 * @param sets  number of sets, a power of two
+	 */
+	public StatCache(String path, int sets) throws IOException {
+		this.path = path;
+		this.sets = Integer.highestOneBit(Math.max(1, sets));
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+		long size = HEADER_SIZE + (long) this.sets * SET_SIZE * SLOT_SIZE;
+		file = new RandomAccessFile(path, "rw");
+		boolean valid = file.length() == size && file.readLong() == MAGIC && file.readInt() == VERSION &&
+				file.readInt() == this.sets;
+		if (!valid) {
+			// discard a cache of another layout, the new file is sparse until slots are used
+			file.setLength(0L);
+			file.setLength(size);
+		}
+		map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+		if (!valid) {
+			map.putLong(0, MAGIC);
+			map.putInt(8, VERSION);
+			map.putInt(12, this.sets);
+		}
+	}
+
+	public StatCache(String path) throws IOException {
+		this(path, DEFAULT_SETS);
+	}
+
+	/**
+	 * @return true if an earlier check found the data file of the (unchanged) replica perfect
+	 */
+	public boolean isPerfect(Replica r) {
+		long[] key = key(r);
+		int set = set(key);
+		long now = System.currentTimeMillis();
+		synchronized (locks[set & (LOCK_STRIPES - 1)]) {
+			for (int i = 0; i < SET_SIZE; i++) {
+				int offset = offset(set, i);
+				if (map.getLong(offset) == key[0] && map.getLong(offset + 8) == key[1]) {
+					return now - map.getLong(offset + 16) < maxAgeMillis;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records that the data file of a replica has been found perfect.
+	 */
+	public void putPerfect(Replica r) {
+		long[] key = key(r);
+		int set = set(key);
+		long now = System.currentTimeMillis();
+		synchronized (locks[set & (LOCK_STRIPES - 1)]) {
+			int victim = -1;
+			long oldest = Long.MAX_VALUE;
+			for (int i = 0; i < SET_SIZE; i++) {
+				int offset = offset(set, i);
+				long time = map.getLong(offset + 16);
+				if (map.getLong(offset) == key[0] && map.getLong(offset + 8) == key[1]) {
+					victim = offset;
+					break;
+				}
+				// empty slots have time 0 and are used first
+				if (time < oldest) {
+					oldest = time;
+					victim = offset;
+				}
+			}
+			map.putLong(victim, key[0]);
+			map.putLong(victim + 8, key[1]);
+			map.putLong(victim + 16, now);
+		}
+	}
+
+	/**
+	 * Writes the cache to disk and closes the file.
+	 */
+	public void close() {
+		if (file == null) return;
+		map.force();
+		try {
+			file.close();
+		} catch (IOException e) {
+			// the mapping remains valid until it is garbage collected
+		}
+		file = null;
+	}
+
+	private int set(long[] key) {
+		return (int) (key[0] >>> 32) & (sets - 1);
+	}
+
+	private static int offset(int set, int slot) {
+		return HEADER_SIZE + (set * SET_SIZE + slot) * SLOT_SIZE;
+	}
+
+	/**
+	 * @return two independent 64-bit hashes of the replica identity, the second one is never 0 so that
+	 *  an empty slot never matches
+	 */
+	private static long[] key(Replica r) {
+		byte[] id = (r.dataId + "\0" + r.dataReplNum + "\0" + r.dataRescName + "\0" + r.dataPath + "\0" +
+				r.dataSize + "\0" + r.dataModifyTime).getBytes(StandardCharsets.UTF_8);
+		long h1 = 0xcbf29ce484222325L;
+		long h2 = 0x84222325cbf29ce4L;
+		for (byte b : id) {
+			h1 = (h1 ^ (b & 0xff)) * FNV_PRIME;
+			h2 = (h2 ^ (b & 0xff)) * 0x9e3779b97f4a7c15L;
+			h2 ^= h2 >>> 29;
+		}
+		return new long[] { mix(h1), mix(h2) | 1L };
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public String toString() {
+		return path + " (" + sets * SET_SIZE + " entries)";
+	}
+
+}
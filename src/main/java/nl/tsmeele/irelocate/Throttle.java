@@ -0,0 +1,159 @@
+package nl.tsmeele.irelocate;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of replicated bytes and of iRODS operations (catalog queries, rule executions,
+ * replications and trims), shared by all processing threads.
+ * Optionally the limits only apply during configured hours of the day, with separate (by default
+ * no) limits outside these hours.
+ */
+public class Throttle {
+	private static final long PROFILE_CHECK_MILLIS = 60000L;
+	private final TokenBucket bytes = new TokenBucket();
+	private final TokenBucket operations = new TokenBucket();
+	private final long bytesPerSecond, opsPerSecond;
+	private final long offHoursBytesPerSecond, offHoursOpsPerSecond;
+	// periods of the day during which the limits apply, empty if they always apply
+	private final List<LocalTime[]> hours;
+	private volatile long nextCheck = 0L;
+
+	/**
+	 * Token bucket that allows a burst of one second, a rate of 0 means unlimited.
+	 * A request larger than the bucket is granted at once and the debt is paid by later requests,
+	 * so that a single large data object is not blocked forever.
+	 */
+	private static class TokenBucket {
+		private double rate = 0.0;
+		private double tokens = 0.0;
+		private long last = System.nanoTime();
+
+		synchronized void setRate(long perSecond) {
+			refill();
+			rate = perSecond;
+			tokens = Math.min(tokens, rate);
+		}
+
+		/**
+		 * @return nanoseconds to wait before the requested amount may be used
+		 */
+		synchronized long reserve(long amount) {
+			if (rate <= 0.0) return 0L;
+			refill();
+			tokens -= amount;
+			return tokens >= 0.0 ? 0L : (long) (-tokens / rate * 1e9);
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(rate, tokens + (now - last) / 1e9 * rate);
+			last = now;
+		}
+	}
+
+	/**
+	 * @param bytesPerSecond          maximum replicated bytes per second, 0 for no limit
+	 * @param opsPerSecond            maximum iRODS operations per second, 0 for no limit
+	 * @param hours                   periods of the day when the limits apply, e.g. "08:00-18:00,19:00-21:00",
+	 *                                null or empty if the limits always apply
+	 * @param offHoursBytesPerSecond  maximum replicated bytes per second outside the periods, 0 for no limit
+	 * @param offHoursOpsPerSecond    maximum iRODS operations per second outside the periods, 0 for no limit
+	 * @throws IllegalArgumentException if the periods cannot be parsed
+	 */
+	public Throttle(long bytesPerSecond, long opsPerSecond, String hours, long offHoursBytesPerSecond,
+			long offHoursOpsPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.opsPerSecond = opsPerSecond;
+		this.offHoursBytesPerSecond = offHoursBytesPerSecond;
+		this.offHoursOpsPerSecond = offHoursOpsPerSecond;
+		this.hours = parseHours(hours);
+		applyProfile();
+	}
+
+	/**
+	 * Waits until the replication of a number of bytes is allowed.
+	 */
+	public void replicate(long size) throws InterruptedException {
+		checkProfile();
+		TimeUnit.NANOSECONDS.sleep(bytes.reserve(size));
+	}
+
+	/**
+	 * Waits until an iRODS operation is allowed.
+	 */
+	public void operation() throws InterruptedException {
+		checkProfile();
+		TimeUnit.NANOSECONDS.sleep(operations.reserve(1));
+	}
+
+	/**
+	 * @return maximum replicated bytes per second during the throttle hours, 0 if unlimited
+	 */
+	public long bytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * @return true if the limits of the working hours currently apply
+	 */
+	public boolean inHours() {
+		if (hours.isEmpty()) return true;
+		LocalTime now = LocalTime.now();
+		for (LocalTime[] period : hours) {
+			boolean inPeriod = period[0].isBefore(period[1]) ?
+					!now.isBefore(period[0]) && now.isBefore(period[1]) :
+					// period wraps around midnight
+					!now.isBefore(period[0]) || now.isBefore(period[1]);
+			if (inPeriod) return true;
+		}
+		return false;
+	}
+
+	private void checkProfile() {
+		if (System.currentTimeMillis() >= nextCheck) {
+			applyProfile();
+		}
+	}
+
+	private synchronized void applyProfile() {
+		if (inHours()) {
+			bytes.setRate(bytesPerSecond);
+			operations.setRate(opsPerSecond);
+		} else {
+			bytes.setRate(offHoursBytesPerSecond);
+			operations.setRate(offHoursOpsPerSecond);
+		}
+		nextCheck = System.currentTimeMillis() + PROFILE_CHECK_MILLIS;
+	}
+
+	private static List<LocalTime[]> parseHours(String hours) {
+		List<LocalTime[]> out = new ArrayList<LocalTime[]>();
+		if (hours == null || hours.trim().isEmpty()) {
+			return out;
+		}
+		for (String period : hours.split(",")) {
+			String[] times = period.trim().split("-");
+			if (times.length != 2) {
+				throw new IllegalArgumentException("Invalid period of the day: " + period);
+			}
+			try {
+				out.add(new LocalTime[] { LocalTime.parse(times[0].trim()), LocalTime.parse(times[1].trim()) });
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException("Invalid period of the day: " + period);
+			}
+		}
+		return out;
+	}
+
+	public String toString() {
+		return "bytes/s " + (bytesPerSecond == 0L ? "unlimited" : bytesPerSecond) +
+				", operations/s " + (opsPerSecond == 0L ? "unlimited" : opsPerSecond) +
+				(hours.isEmpty() ? "" : " during throttle hours, otherwise bytes/s " +
+						(offHoursBytesPerSecond == 0L ? "unlimited" : offHoursBytesPerSecond) +
+						", operations/s " + (offHoursOpsPerSecond == 0L ? "unlimited" : offHoursOpsPerSecond));
+	}
+
+}
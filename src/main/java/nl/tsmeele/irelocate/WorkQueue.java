@@ -0,0 +1,255 @@
+package nl.tsmeele.irelocate;
+
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded queue that hands out data objects from the enumeration to the processing threads.
+ * Data ids are stored as primitive longs in fixed size blocks. Consumers claim a complete block
+ * and release it after use, so blocks are recycled and no objects are allocated per data id.
+ * Producers block when the queue is full, so memory use does not depend on the number of
+ * data objects selected.
+ *
+ * Optionally, large data objects are diverted to a separate lane. Large objects are handed out
+ * one at a time, largest first, and only a limited number of them can be claimed at the same
+ * time. The other consumers continue with the small objects, so that a few huge transfers
+ * do not hold up the bulk of the data objects.
+ */
+public class WorkQueue {
+	private static final long POLL_INTERVAL_MILLIS = 100L;
+	private int blockSize;
+	private BlockingQueue<Block> filled;
+	private BlockingQueue<Block> free;
+	// partially filled blocks of producers that have finished
+	private ConcurrentLinkedQueue<Block> tails = new ConcurrentLinkedQueue<Block>();
+	private AtomicInteger openProducers = new AtomicInteger(0);
+	// large object lane, disabled if largeSize is 0
+	private long largeSize;
+	private PriorityBlockingQueue<Block> large;
+	private Semaphore largeSpace;
+	private Semaphore largeSlots;
+
+	/**
+	 * A range of data ids, the enumeration did not select any other data ids in this range than
+	 * those handed out in blocks. The range is complete when all its blocks have been processed.
+	 */
+	public static class Range {
+		public final long from;
+		public volatile long to;
+		// blocks of the range that are not yet complete
+		private final AtomicInteger pending = new AtomicInteger(1);
+
+		Range(long from) {
+			this.from = from;
+			this.to = from - 1;
+		}
+
+		/**
+		 * Marks the data objects of one of the blocks of this range as processed.
+		 * @return true if this was the last block of the range to complete
+		 */
+		public boolean complete() {
+			return pending.decrementAndGet() == 0;
+		}
+	}
+
+	/**
+	 * A block of data ids, in the order of enumeration.
+	 * A block of small objects belongs to its own range, which ends at the last data id enumerated
+	 * before the block was handed out. A large object belongs to the range of the block that was being
+	 * filled when the large object was enumerated.
+	 */
+	public static class Block {
+		public final long[] ids;
+		public int length = 0;
+		public Range range;
+		// size of the data object of a large object block
+		public long dataSize = 0L;
+		private boolean isLarge = false;
+
+		Block(int size) {
+			ids = new long[size];
+		}
+
+		public boolean isLarge() {
+			return isLarge;
+		}
+	}
+
+	/**
+	 * Adds the data ids of one enumeration to the queue, in ascending order.
+	 * A producer is to be used by a single thread.
+	 */
+	public class Producer {
+		private Block fill = null;
+		private long nextRangeStart;
+		private boolean closed = false;
+
+		private Producer(long startDataId) {
+			nextRangeStart = startDataId;
+		}
+
+		/**
+		 * Adds a data object, waiting at most the specified time for space to become available.
+		 * @return false if the queue is still full after the timeout, the data id has not been added
+		 */
+		public boolean offer(long dataId, long timeout, TimeUnit unit) throws InterruptedException {
+			return offer(dataId, 0L, timeout, unit);
+		}
+
+		/**
+		 * Adds a data object, waiting at most the specified time for space to become available.
+		 * @param dataSize  size of the data object in bytes, determines the lane
+		 * @return false if the queue is still full after the timeout, the data id has not been added
+		 */
+		public boolean offer(long dataId, long dataSize, long timeout, TimeUnit unit) throws InterruptedException {
+			if (fill != null && fill.length == blockSize) {
+				if (!filled.offer(fill, timeout, unit)) {
+					return false;
+				}
+				fill = null;
+			}
+			boolean isLarge = large != null && dataSize >= largeSize;
+			if (isLarge && !largeSpace.tryAcquire(timeout, unit)) {
+				return false;
+			}
+			if (fill == null) {
+				fill = free.poll();
+				if (fill == null) {
+					fill = new Block(blockSize);
+				}
+				fill.range = new Range(nextRangeStart);
+			}
+			if (isLarge) {
+				Block block = new Block(1);
+				block.ids[0] = dataId;
+				block.length = 1;
+				block.dataSize = dataSize;
+				block.isLarge = true;
+				block.range = fill.range;
+				fill.range.pending.incrementAndGet();
+				large.add(block);
+			} else {
+				fill.ids[fill.length++] = dataId;
+			}
+			fill.range.to = dataId;
+			nextRangeStart = dataId + 1;
+			return true;
+		}
+
+		/**
+		 * Marks the end of this enumeration. Remaining entries can still be claimed.
+		 */
+		public void close() {
+			if (closed) return;
+			closed = true;
+			if (fill != null) {
+				tails.add(fill);
+				fill = null;
+			}
+			openProducers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @param blockSize  number of data ids per block
+	 * @param capacity   maximum number of filled blocks waiting to be claimed
+	 */
+	public WorkQueue(int blockSize, int capacity) {
+		this(blockSize, capacity, 0L, 0);
+	}
+
+	/**
+	 * @param blockSize     number of data ids per block
+	 * @param capacity      maximum number of filled blocks waiting to be claimed
+	 * @param largeSize     minimum size in bytes of a large object, 0 to disable the large object lane
+	 * @param largeClaims   maximum number of large objects claimed at the same time
+	 */
+	public WorkQueue(int blockSize, int capacity, long largeSize, int largeClaims) {
+		this.blockSize = blockSize;
+		filled = new ArrayBlockingQueue<Block>(capacity);
+		// the free list can also hold the blocks being filled or processed
+		free = new ArrayBlockingQueue<Block>(capacity * 2 + 1);
+		if (largeSize > 0L) {
+			this.largeSize = largeSize;
+			large = new PriorityBlockingQueue<Block>(16, Comparator.comparingLong((Block b) -> b.dataSize).reversed());
+			// the lane buffers up to a full block of large objects, so that the largest can go first
+			largeSpace = new Semaphore(Math.max(blockSize, capacity));
+			largeSlots = new Semaphore(Math.max(1, largeClaims));
+		}
+	}
+
+	/**
+	 * Registers a producer. The queue is exhausted once all its producers have been closed.
+	 * All producers should be created before the consumers start to claim blocks.
+	 * @param startDataId  lowest data id of the enumeration
+	 */
+	public Producer newProducer(long startDataId) {
+		openProducers.incrementAndGet();
+		return new Producer(startDataId);
+	}
+
+	/**
+	 * Claims a block of data objects, waits until one is available.
+	 * A large object is claimed whenever one is waiting and the maximum number of claimed
+	 * large objects has not been reached.
+	 * @return block of data ids or null if all producers have been closed and all blocks have been claimed
+	 */
+	public Block claim() throws InterruptedException {
+		while (true) {
+			// read producer state before polling to avoid missing the last blocks
+			boolean lastRound = openProducers.get() == 0;
+			Block block = claimLarge();
+			if (block == null) {
+				block = filled.poll();
+			}
+			if (block == null) {
+				block = tails.poll();
+			}
+			if (block != null) {
+				return block;
+			}
+			if (lastRound && (large == null || large.isEmpty())) {
+				return null;
+			}
+			block = filled.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+			if (block != null) {
+				return block;
+			}
+		}
+	}
+
+	private Block claimLarge() {
+		if (large == null || large.isEmpty() || !largeSlots.tryAcquire()) {
+			return null;
+		}
+		Block block = large.poll();
+		if (block == null) {
+			largeSlots.release();
+		} else {
+			largeSpace.release();
+		}
+		return block;
+	}
+
+	/**
+	 * Returns a claimed block after its data objects have been processed, to be reused.
+	 * The range of the block should be completed before the block is released.
+	 */
+	public void release(Block block) {
+		if (block.isLarge) {
+			largeSlots.release();
+			return;
+		}
+		block.length = 0;
+		block.range = null;
+		free.offer(block);
+	}
+
+}
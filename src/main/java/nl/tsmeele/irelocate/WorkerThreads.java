@@ -0,0 +1,24 @@
+package nl.tsmeele.irelocate;
+
+/**
+ * Creates the threads that process data objects.
+ * This Java 11 version only supports platform threads, the multi-release jar contains
+ * a Java 21 version that also supports virtual threads.
+ */
+public class WorkerThreads {
+
+	public static boolean isVirtualSupported() {
+		return false;
+	}
+
+	/**
+	 * @param task     task to be run by the thread
+	 * @param name     name of the thread
+	 * @param virtual  true to request a virtual thread, ignored if not supported
+	 * @return new, not yet started, thread
+	 */
+	public static Thread newThread(Runnable task, String name, boolean virtual) {
+		return new Thread(task, name);
+	}
+
+}
@@ -0,0 +1,27 @@
+package nl.tsmeele.irelocate;
+
+/**
+ * Creates the threads that process data objects.
+ * This Java 21 version supports virtual threads. They need less memory than platform threads,
+ * the number of data objects processed at the same time is still bounded by the number of sessions.
+ */
+public class WorkerThreads {
+
+	public static boolean isVirtualSupported() {
+		return true;
+	}
+
+	/**
+	 * @param task     task to be run by the thread
+	 * @param name     name of the thread
+	 * @param virtual  true to request a virtual thread
+	 * @return new, not yet started, thread
+	 */
+	public static Thread newThread(Runnable task, String name, boolean virtual) {
+		if (virtual) {
+			return Thread.ofVirtual().name(name).unstarted(task);
+		}
+		return new Thread(task, name);
+	}
+
+}